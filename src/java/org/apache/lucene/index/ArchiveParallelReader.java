@@ -501,8 +501,8 @@ public class ArchiveParallelReader extends IndexReader {
     throw new UnsupportedOperationException("ArchiveParallelReader does not support this method.");
   }
 
-  // for testing
-  IndexReader[] getSubReaders() {
+  /** Returns the sub-readers, in the order they were added. */
+  public IndexReader[] getSubReaders() {
     return readers.toArray(new IndexReader[readers.size()]);
   }
 
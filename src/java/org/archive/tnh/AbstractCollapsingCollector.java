@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import org.apache.lucene.search.Collector;
+
+/**
+ * Common interface to the various collapsing collectors, so that
+ * Search can use whichever one suits the FieldCache it has.
+ */
+public abstract class AbstractCollapsingCollector extends Collector
+{
+  /**
+   * Only collect hits ranked after the given Cursor, counting the
+   * hits already shown for each site against the hitsPerSite limit.
+   * Must be called before collection starts.
+   */
+  public void setCursor( Cursor after )
+  {
+    throw new UnsupportedOperationException( this.getClass( ).getName( ) + " does not support cursors" );
+  }
+
+  /**
+   * Count the facets of every hit, before collapsing, with the given
+   * FacetCounter.  Must be called before collection starts.
+   */
+  public void setFacets( FacetCounter facets )
+  {
+    throw new UnsupportedOperationException( this.getClass( ).getName( ) + " does not support facets" );
+  }
+
+  /**
+   * Add every hit, before collapsing, to the given SiteSketch.  Must
+   * be called before collection starts.
+   */
+  public void setSketch( SiteSketch sketch )
+  {
+    throw new UnsupportedOperationException( this.getClass( ).getName( ) + " does not support sketches" );
+  }
+
+  /**
+   * Return array of Hits, highest-ranking first.  If there were no
+   * hits, the array is of size 0.
+   */
+  public abstract Hit[] getHits( );
+
+  /**
+   * Returns the number of collapsed hits, which will match the size
+   * of the array returned by getHits().
+   */
+  public abstract int getNumHits( );
+
+  /**
+   * Returns the total number of uncollapsed, or "raw", hits.
+   */
+  public abstract int getNumUncollapsedHits( );
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+/**
+ * Ordinals backed by plain Java arrays on the heap.
+ */
+public class ArrayOrdinals extends Ordinals
+{
+  final int[]    ords;
+  final String[] values;
+  final long[]   hashes;
+
+  /**
+   * The <code>values</code> array must have <code>null</code> at
+   * index 0.
+   */
+  public ArrayOrdinals( int[] ords, String[] values )
+  {
+    this.ords   = ords;
+    this.values = values;
+
+    this.hashes = new long[values.length];
+    for ( int i = 0 ; i < values.length ; i++ )
+      {
+        this.hashes[i] = SiteSketch.hash( values[i] );
+      }
+  }
+
+  public int getOrd( int docId )
+  {
+    return this.ords[docId];
+  }
+
+  public String getValue( int ord )
+  {
+    return this.values[ord];
+  }
+
+  public long getHash( int ord )
+  {
+    return this.hashes[ord];
+  }
+
+  public int size( )
+  {
+    return this.values.length;
+  }
+
+}
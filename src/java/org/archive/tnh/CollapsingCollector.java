@@ -24,7 +24,6 @@ import org.apache.lucene.analysis.*;
 import org.apache.lucene.queryParser.*;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
 
 /**
@@ -39,7 +38,7 @@ import org.apache.lucene.search.Scorer;
  * Use the getNumUncollapsedHits() and getHits() methods to retrieve
  * the total number of uncollapsed hits and the collapsed Hits.
  */
-public class CollapsingCollector extends Collector
+public class CollapsingCollector extends AbstractCollapsingCollector
 {
   public static final Comparator<Hit> SCORE_COMPARATOR = new Comparator<Hit>( )
   {
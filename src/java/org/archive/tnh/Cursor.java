@@ -0,0 +1,225 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Position in a collapsed result list, so that the next page can be
+ * collected without re-collecting all the pages before it.
+ *
+ * A Cursor holds the score and docId of the last hit shown, the
+ * number of hits shown so far, and the number of hits shown for each
+ * site.  The next page only collects hits ranked after the last one,
+ * and a site which already used up its hitsPerSite on earlier pages
+ * gets no more.  When collapsing on several keys, the counts are kept
+ * for the group at every level, as given by
+ * MultiCollapsingCollector.groupKeys().
+ *
+ * Cursors are passed to and from clients as opaque, URL-safe Strings
+ * via encode() and decode().  Since they contain docIds, they are
+ * only valid for the same query against the same indexes.
+ */
+public class Cursor
+{
+  private static final int VERSION = 1;
+
+  private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray( );
+
+  public float score;
+  public int   id;
+  public int   position;
+  public Map<String,Integer> sites = new HashMap<String,Integer>( );
+
+  /**
+   * Returns true if a hit with the given score and docId is ranked
+   * after this cursor, using the same ordering as the collectors:
+   * higher scores first, and for equal scores, lower ids first.
+   */
+  public boolean isAfter( float score, int id )
+  {
+    if ( score != this.score ) return score < this.score;
+
+    return id > this.id;
+  }
+
+  /**
+   * Returns the number of hits already shown for the given site,
+   * which must be lower-case, or for the given group key.
+   */
+  public int getCount( String site )
+  {
+    Integer count = this.sites.get( site );
+
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns a Cursor positioned after hits[from..to), which follow
+   * the <code>previous</code> Cursor, or are the very first hits if
+   * <code>previous</code> is <code>null</code>.
+   */
+  public static Cursor after( Cursor previous, Hit[] hits, int from, int to )
+  {
+    if ( to <= from ) throw new IllegalArgumentException( "Cannot position a cursor after no hits" );
+
+    Cursor cursor = new Cursor( );
+
+    if ( previous != null )
+      {
+        cursor.position = previous.position;
+        cursor.sites.putAll( previous.sites );
+      }
+
+    for ( int i = from ; i < to ; i++ )
+      {
+        for ( String group : MultiCollapsingCollector.groupKeys( hits[i] ) )
+          {
+            cursor.sites.put( group, cursor.getCount( group ) + 1 );
+          }
+      }
+
+    cursor.position += to - from;
+    cursor.score     = hits[to-1].score;
+    cursor.id        = hits[to-1].id;
+
+    return cursor;
+  }
+
+  /**
+   * Encode this Cursor as an opaque, URL-safe String.
+   */
+  public String encode( )
+  {
+    try
+      {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+        DataOutputStream out = new DataOutputStream( new DeflaterOutputStream( bytes ) );
+
+        out.writeByte ( VERSION );
+        out.writeFloat( this.score );
+        out.writeInt  ( this.id );
+        out.writeInt  ( this.position );
+        out.writeInt  ( this.sites.size( ) );
+        for ( Map.Entry<String,Integer> e : this.sites.entrySet( ) )
+          {
+            out.writeUTF( e.getKey( ) );
+            out.writeInt( e.getValue( ) );
+          }
+        out.close( );
+
+        return base64( bytes.toByteArray( ) );
+      }
+    catch ( IOException ioe )
+      {
+        // Can't happen when writing to a byte array.
+        throw new RuntimeException( ioe );
+      }
+  }
+
+  /**
+   * Decode a Cursor from a String produced by encode().  Throws
+   * IllegalArgumentException if the String is not a valid Cursor.
+   */
+  public static Cursor decode( String s )
+  {
+    try
+      {
+        DataInputStream in = new DataInputStream( new InflaterInputStream( new ByteArrayInputStream( unbase64( s ) ) ) );
+
+        if ( in.readByte( ) != VERSION ) throw new IllegalArgumentException( "Invalid cursor: " + s );
+
+        Cursor cursor = new Cursor( );
+        cursor.score    = in.readFloat( );
+        cursor.id       = in.readInt( );
+        cursor.position = in.readInt( );
+
+        int numSites = in.readInt( );
+        if ( numSites < 0 ) throw new IllegalArgumentException( "Invalid cursor: " + s );
+
+        for ( int i = 0 ; i < numSites ; i++ )
+          {
+            String site = in.readUTF( );
+            cursor.sites.put( site, in.readInt( ) );
+          }
+
+        return cursor;
+      }
+    catch ( IOException ioe )
+      {
+        throw new IllegalArgumentException( "Invalid cursor: " + s, ioe );
+      }
+  }
+
+  /**
+   * URL-safe Base64 encoding, without padding.
+   */
+  static String base64( byte[] bytes )
+  {
+    StringBuilder buf = new StringBuilder( ( bytes.length * 4 + 2 ) / 3 );
+
+    for ( int i = 0 ; i < bytes.length ; i += 3 )
+      {
+        int n = ( bytes[i] & 0xff ) << 16;
+        if ( i + 1 < bytes.length ) n |= ( bytes[i+1] & 0xff ) << 8;
+        if ( i + 2 < bytes.length ) n |= ( bytes[i+2] & 0xff );
+
+        buf.append( BASE64[( n >>> 18 ) & 0x3f] );
+        buf.append( BASE64[( n >>> 12 ) & 0x3f] );
+        if ( i + 1 < bytes.length ) buf.append( BASE64[( n >>> 6 ) & 0x3f] );
+        if ( i + 2 < bytes.length ) buf.append( BASE64[n & 0x3f] );
+      }
+
+    return buf.toString( );
+  }
+
+  static byte[] unbase64( String s )
+    throws IOException
+  {
+    if ( s.length( ) % 4 == 1 ) throw new IOException( "Bad length" );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( s.length( ) * 3 / 4 );
+
+    int n = 0, bits = 0;
+    for ( int i = 0 ; i < s.length( ) ; i++ )
+      {
+        char c = s.charAt( i );
+
+        int v;
+        if      ( c >= 'A' && c <= 'Z' ) v = c - 'A';
+        else if ( c >= 'a' && c <= 'z' ) v = c - 'a' + 26;
+        else if ( c >= '0' && c <= '9' ) v = c - '0' + 52;
+        else if ( c == '-' )             v = 62;
+        else if ( c == '_' )             v = 63;
+        else throw new IOException( "Bad character: " + c );
+
+        n = ( n << 6 ) | v;
+        bits += 6;
+
+        if ( bits >= 8 )
+          {
+            bits -= 8;
+            bytes.write( ( n >>> bits ) & 0xff );
+          }
+      }
+
+    return bytes.toByteArray( );
+  }
+
+}
@@ -149,10 +149,43 @@ public class DefaultQueryTranslator
   }
 
   public void addFilterGroup( BooleanQuery bq, String field, String[] values )
+  {
+    BooleanQuery group = buildGroup( field, values );
+
+    if ( group == null ) return ;
+
+    // Use a ConstantScoreQuery so that the extra terms do not change
+    // the scoring.  See buildFilter() and FilterCache for the
+    // equivalent as a filter.
+    bq.add( new ConstantScoreQuery( group ), BooleanClause.Occur.MUST );
+  }
+
+  /**
+   * Build a Filter matching any of the values of the field, or
+   * return <code>null</code> if there are none.  The filter
+   * equivalent of addFilterGroup(), usually wrapped in a
+   * CachingWrapperFilter by the FilterCache.
+   */
+  public Filter buildFilter( String field, String[] values )
+  {
+    BooleanQuery group = buildGroup( field, values );
+
+    if ( group == null ) return null;
+
+    return new QueryWrapperFilter( group );
+  }
+
+  /**
+   * Build a group of SHOULD clauses matching any of the values of the
+   * field, or return <code>null</code> if there are none.  Shared by
+   * addFilterGroup() and buildFilter(), so that the query and the
+   * filter always match the same documents.
+   */
+  private BooleanQuery buildGroup( String field, String[] values )
   {
     if ( values == null || values.length == 0 )
       {
-        return ;
+        return null;
       }
 
     BooleanQuery group = new BooleanQuery( );
@@ -160,13 +193,10 @@ public class DefaultQueryTranslator
     for ( String value : values )
       {
         Query q = buildQuery( field, value );
-        group.add( q, BooleanClause.Occur.SHOULD );            
+        group.add( q, BooleanClause.Occur.SHOULD );
       }
 
-    // Use a ConstantScoreQuery so that the extra terms do not change
-    // the scoring.  In fact, these should probably be implemented as
-    // filters, not queries.
-    bq.add( new ConstantScoreQuery( group ), BooleanClause.Occur.MUST );
+    return group;
   }
 
   public Query buildQuery( String field, String term )
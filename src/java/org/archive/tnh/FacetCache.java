@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.io.IOException;
+import java.io.File;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Cache of the FacetOrdinals of any number of fields, loaded on
+ * demand.  As with FieldCacheOrdinals, they are cached per reader
+ * core and dropped when the reader is garbage-collected.
+ *
+ * Unlike the site, facet values are not lower-cased.
+ */
+public class FacetCache
+{
+  final Map<Object,Map<String,FacetOrdinals>> cache = new WeakHashMap<Object,Map<String,FacetOrdinals>>( );
+
+  public FacetOrdinals getOrdinals( IndexReader reader, String fieldName )
+    throws IOException
+  {
+    Object key = reader.getCoreCacheKey( );
+
+    synchronized ( this.cache )
+      {
+        Map<String,FacetOrdinals> fields = this.cache.get( key );
+
+        if ( fields != null && fields.containsKey( fieldName ) ) return fields.get( fieldName );
+      }
+
+    // Load outside the lock, the first thread in wins.
+    FacetOrdinals ordinals = load( reader, fieldName );
+
+    synchronized ( this.cache )
+      {
+        Map<String,FacetOrdinals> fields = this.cache.get( key );
+
+        if ( fields == null )
+          {
+            fields = new HashMap<String,FacetOrdinals>( );
+
+            this.cache.put( key, fields );
+          }
+
+        FacetOrdinals existing = fields.get( fieldName );
+
+        if ( existing != null ) return existing;
+
+        fields.put( fieldName, ordinals );
+      }
+
+    return ordinals;
+  }
+
+  /**
+   * Walk the terms of the field, assigning an ordinal to each one,
+   * and gathering up the ordinals of each document.
+   */
+  public FacetOrdinals load( IndexReader reader, String fieldName )
+    throws IOException
+  {
+    final int maxDoc = reader.maxDoc( );
+
+    List<String> values = new ArrayList<String>( );
+
+    // First, gather (doc, ord) pairs in term order, counting the
+    // number of values of each document as we go.
+    int[] counts = new int[maxDoc + 1];
+    int[] docs   = new int[Math.max( 16, maxDoc )];
+    int[] ords   = new int[docs.length];
+    int   n      = 0;
+
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms( new Term(fieldName) );
+    try
+      {
+        do
+          {
+            Term term = termEnum.term();
+            if ( term==null || !fieldName.equals( term.field() ) ) break;
+
+            int ord = values.size( );
+            values.add( term.text( ) );
+
+            termDocs.seek( termEnum );
+            while ( termDocs.next() )
+              {
+                if ( n == docs.length )
+                  {
+                    docs = Arrays.copyOf( docs, n * 2 );
+                    ords = Arrays.copyOf( ords, n * 2 );
+                  }
+
+                docs[n] = termDocs.doc();
+                ords[n] = ord;
+                n++;
+
+                counts[termDocs.doc()]++;
+              }
+          }
+        while (termEnum.next());
+      }
+    finally
+      {
+        termDocs.close();
+        termEnum.close();
+      }
+
+    // Then turn the counts into starting positions and drop each
+    // ordinal into place.
+    int[] starts = new int[maxDoc + 1];
+    for ( int d = 0, start = 0 ; d <= maxDoc ; d++ )
+      {
+        starts[d] = start;
+        start    += counts[d];
+      }
+
+    int[] next   = counts;
+    System.arraycopy( starts, 0, next, 0, maxDoc + 1 );
+
+    int[] docOrds = new int[n];
+    for ( int i = 0 ; i < n ; i++ )
+      {
+        docOrds[next[docs[i]]++] = ords[i];
+      }
+
+    return new FacetOrdinals( starts, docOrds, values.toArray( new String[values.size()] ) );
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    if ( args.length < 2 )
+      {
+        System.err.println( "FacetCache: <field> <index...>" );
+        System.exit( 1 );
+      }
+
+    FacetCache cache = new FacetCache( );
+
+    for ( int i = 1 ; i < args.length ; i++ )
+      {
+        IndexReader reader = IndexReader.open( new MMapDirectory( new File( args[i] ) ), true );
+
+        FacetOrdinals ordinals = cache.getOrdinals( reader, args[0] );
+
+        System.out.println( "Index: " + reader );
+        System.out.println( "  numDocs: " + reader.numDocs( ) );
+        System.out.println( "  numOrds: " + ordinals.size( ) );
+
+        for ( int d = 0; d < reader.maxDoc( ) ; d++ )
+          {
+            System.out.print( "  doc[" + d + "]:" );
+            for ( int j = ordinals.starts[d] ; j < ordinals.starts[d+1] ; j++ )
+              {
+                System.out.print( " " + ordinals.getValue( ordinals.ords[j] ) );
+              }
+            System.out.println( );
+          }
+      }
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Counts the number of hits having each value of a set of facet
+ * fields.  Driven by a collapsing collector, which passes along
+ * every hit it is given, before any collapsing, so that the counts
+ * are filled in during the same pass over the index.
+ *
+ * Within a reader, the hits are counted by ordinal in an int[].
+ * When moving on to the next reader, or when the counts are
+ * requested, the non-zero counts are added to the totals by value.
+ * Only the ordinals actually seen are visited, so fields with lots
+ * of distinct values, such as "date", don't cost a scan of all of
+ * them for every reader.
+ *
+ * Not thread-safe; use one FacetCounter per query.
+ */
+public class FacetCounter
+{
+  final FacetCache cache;
+  final String[]   fields;
+
+  final FacetOrdinals[] ordinals;
+  final int[][]         counts;
+  final int[][]         seen;
+  final int[]           numSeen;
+
+  final List<Map<String,Integer>> totals;
+
+  public FacetCounter( FacetCache cache, String[] fields )
+  {
+    this.cache  = cache;
+    this.fields = fields;
+
+    this.ordinals = new FacetOrdinals[fields.length];
+    this.counts   = new int[fields.length][];
+    this.seen     = new int[fields.length][];
+    this.numSeen  = new int[fields.length];
+
+    this.totals = new ArrayList<Map<String,Integer>>( fields.length );
+    for ( int i = 0 ; i < fields.length ; i++ )
+      {
+        this.totals.add( new HashMap<String,Integer>( ) );
+      }
+  }
+
+  public void setNextReader( IndexReader reader )
+    throws IOException
+  {
+    flush( );
+
+    for ( int i = 0 ; i < this.fields.length ; i++ )
+      {
+        FacetOrdinals o = this.cache.getOrdinals( reader, this.fields[i] );
+
+        this.ordinals[i] = o;
+
+        // The arrays are re-used from one reader to the next, flush()
+        // having zeroed out the counts.
+        if ( this.counts[i] == null || this.counts[i].length < o.size( ) )
+          {
+            this.counts[i] = new int[o.size( )];
+            this.seen  [i] = new int[o.size( )];
+          }
+      }
+  }
+
+  public void collect( int docId )
+  {
+    for ( int i = 0 ; i < this.fields.length ; i++ )
+      {
+        final FacetOrdinals o = this.ordinals[i];
+        final int[]         c = this.counts[i];
+
+        for ( int j = o.starts[docId], end = o.starts[docId+1] ; j < end ; j++ )
+          {
+            final int ord = o.ords[j];
+
+            if ( c[ord]++ == 0 ) this.seen[i][this.numSeen[i]++] = ord;
+          }
+      }
+  }
+
+  /**
+   * Add the counts for the current reader to the totals and zero
+   * them out.
+   */
+  private void flush( )
+  {
+    for ( int i = 0 ; i < this.fields.length ; i++ )
+      {
+        if ( this.ordinals[i] == null ) continue ;
+
+        Map<String,Integer> total = this.totals.get( i );
+
+        for ( int j = 0 ; j < this.numSeen[i] ; j++ )
+          {
+            int ord = this.seen[i][j];
+
+            String  value = this.ordinals[i].getValue( ord );
+            Integer count = total.get( value );
+
+            total.put( value, count == null ? this.counts[i][ord] : count + this.counts[i][ord] );
+
+            this.counts[i][ord] = 0;
+          }
+
+        this.numSeen [i] = 0;
+        this.ordinals[i] = null;
+      }
+  }
+
+  /**
+   * Returns the counts for each field, keyed by field name then by
+   * value.
+   */
+  public Map<String,Map<String,Integer>> getCounts( )
+  {
+    flush( );
+
+    Map<String,Map<String,Integer>> facets = new LinkedHashMap<String,Map<String,Integer>>( );
+    for ( int i = 0 ; i < this.fields.length ; i++ )
+      {
+        facets.put( this.fields[i], this.totals.get( i ) );
+      }
+
+    return facets;
+  }
+
+  /**
+   * Add the counts from <code>other</code> into <code>facets</code>.
+   */
+  public static void merge( Map<String,Map<String,Integer>> facets, Map<String,Map<String,Integer>> other )
+  {
+    for ( Map.Entry<String,Map<String,Integer>> field : other.entrySet( ) )
+      {
+        Map<String,Integer> total = facets.get( field.getKey( ) );
+
+        if ( total == null )
+          {
+            total = new HashMap<String,Integer>( );
+
+            facets.put( field.getKey( ), total );
+          }
+
+        for ( Map.Entry<String,Integer> e : field.getValue( ).entrySet( ) )
+          {
+            Integer count = total.get( e.getKey( ) );
+
+            total.put( e.getKey( ), count == null ? e.getValue( ) : count + e.getValue( ) );
+          }
+      }
+  }
+
+  /**
+   * Returns the values of the field, highest count first, at most
+   * <code>max</code> of them.
+   */
+  public static List<Map.Entry<String,Integer>> top( Map<String,Integer> counts, int max )
+  {
+    List<Map.Entry<String,Integer>> entries = new ArrayList<Map.Entry<String,Integer>>( counts.entrySet( ) );
+
+    Collections.sort( entries, new Comparator<Map.Entry<String,Integer>>( )
+                      {
+                        public int compare( Map.Entry<String,Integer> e1, Map.Entry<String,Integer> e2 )
+                        {
+                          int c = e2.getValue( ).compareTo( e1.getValue( ) );
+
+                          return c != 0 ? c : e1.getKey( ).compareTo( e2.getKey( ) );
+                        }
+                      } );
+
+    return entries.size( ) > max ? entries.subList( 0, max ) : entries;
+  }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+/**
+ * Mapping from the documents of a single IndexReader to the ordinals
+ * of all the values of a possibly multi-valued field, such as
+ * "date".
+ *
+ * The ordinals of document <code>d</code> are
+ * <code>ords[starts[d]]</code> up to, but not including,
+ * <code>ords[starts[d+1]]</code>.  Unlike Ordinals, there is no
+ * reserved ordinal for documents without a value: they simply have
+ * no ordinals.
+ */
+public final class FacetOrdinals
+{
+  final int[]    starts;
+  final int[]    ords;
+  final String[] values;
+
+  public FacetOrdinals( int[] starts, int[] ords, String[] values )
+  {
+    this.starts = starts;
+    this.ords   = ords;
+    this.values = values;
+  }
+
+  public String getValue( int ord )
+  {
+    return this.values[ord];
+  }
+
+  /**
+   * Returns the number of distinct values.
+   */
+  public int size( )
+  {
+    return this.values.length;
+  }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * OrdinalFieldCache with one dictionary of values shared by all the
+ * readers, rather than a copy of the values per reader.  The same
+ * site typically appears in many shards, so this keeps each distinct
+ * site on the heap only once, in an OrdinalDictionary.
+ *
+ * Each reader maps its documents to the global ordinals through a
+ * packed array of just enough bits per document for the number of
+ * distinct values.  Since the ordinals are global, the
+ * OrdinalCollapsingCollector can compare them directly across readers.
+ *
+ * The dictionary is built by load(), for all the readers at once.
+ * Readers which were not part of the load fall back to
+ * FieldCacheOrdinals, until the next load.  As with
+ * FieldCacheOrdinals, the values are lower-cased.
+ */
+public class FieldCacheGlobal implements OrdinalFieldCache
+{
+  public static final Logger LOG = Logger.getLogger( FieldCacheGlobal.class.getName() );
+
+  final String             fieldName;
+  final FieldCacheOrdinals fallback;
+
+  final Map<Object,Ordinals> cache = new WeakHashMap<Object,Ordinals>( );
+
+  public FieldCacheGlobal( String fieldName )
+  {
+    this.fieldName = fieldName;
+    this.fallback  = new FieldCacheOrdinals( fieldName );
+  }
+
+  /**
+   * Ordinals of a single reader, into the shared dictionary.
+   */
+  static class GlobalOrdinals extends Ordinals
+  {
+    final PackedInts.Reader ords;
+    final OrdinalDictionary dictionary;
+
+    GlobalOrdinals( PackedInts.Reader ords, OrdinalDictionary dictionary )
+    {
+      this.ords       = ords;
+      this.dictionary = dictionary;
+    }
+
+    public int getOrd( int docId )
+    {
+      return (int) this.ords.get( docId );
+    }
+
+    public String getValue( int ord )
+    {
+      return this.dictionary.getValue( ord );
+    }
+
+    public long getHash( int ord )
+    {
+      return this.dictionary.getHash( ord );
+    }
+
+    public int size( )
+    {
+      return this.dictionary.size( );
+    }
+
+    public Object getOrdinalSpace( )
+    {
+      return this.dictionary;
+    }
+  }
+
+  /**
+   * Build the dictionary for all the given readers, and the ordinals
+   * for each of their sub-readers.  Replaces the dictionary of any
+   * previous load, although the Ordinals already handed out remain
+   * valid.
+   */
+  public void load( Collection<IndexReader> readers )
+    throws IOException
+  {
+    long start = System.currentTimeMillis( );
+
+    List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+    for ( IndexReader reader : readers )
+      {
+        ReaderUtil.gatherSubReaders( subReaders, reader );
+      }
+
+    // First pass: collect the distinct values from all the readers.
+    Set<String> distinct = new HashSet<String>( );
+    for ( IndexReader reader : subReaders )
+      {
+        TermEnum termEnum = reader.terms( new Term(this.fieldName) );
+        try
+          {
+            do
+              {
+                Term term = termEnum.term();
+                if ( term==null || !this.fieldName.equals( term.field() ) ) break;
+
+                distinct.add( term.text( ).toLowerCase( ) );
+              }
+            while (termEnum.next());
+          }
+        finally
+          {
+            termEnum.close();
+          }
+      }
+
+    List<String> values = new ArrayList<String>( distinct );
+    Collections.sort( values );
+    distinct = null;
+
+    OrdinalDictionary dictionary = new OrdinalDictionary( values );
+
+    Map<String,Integer> ords = new HashMap<String,Integer>( values.size( ) * 2 );
+    for ( int i = 0 ; i < values.size( ) ; i++ )
+      {
+        ords.put( values.get( i ), i + 1 );
+      }
+    values = null;
+
+    // Second pass: map each reader's documents to the global ordinals.
+    int  bits = PackedInts.bitsRequired( dictionary.size( ) - 1 );
+    long docs = 0;
+    Map<Object,Ordinals> loaded = new HashMap<Object,Ordinals>( );
+    for ( IndexReader reader : subReaders )
+      {
+        PackedInts.Mutable docOrds = PackedInts.getMutable( reader.maxDoc( ), bits );
+
+        TermDocs termDocs = reader.termDocs();
+        TermEnum termEnum = reader.terms( new Term(this.fieldName) );
+        try
+          {
+            do
+              {
+                Term term = termEnum.term();
+                if ( term==null || !this.fieldName.equals( term.field() ) ) break;
+
+                int ord = ords.get( term.text( ).toLowerCase( ) );
+
+                termDocs.seek( termEnum );
+                while ( termDocs.next() )
+                  {
+                    docOrds.set( termDocs.doc(), ord );
+                  }
+              }
+            while (termEnum.next());
+          }
+        finally
+          {
+            termDocs.close();
+            termEnum.close();
+          }
+
+        loaded.put( reader.getCoreCacheKey( ), new GlobalOrdinals( docOrds, dictionary ) );
+
+        docs += reader.maxDoc( );
+      }
+
+    synchronized ( this.cache )
+      {
+        this.cache.putAll( loaded );
+      }
+
+    LOG.info( "Loaded global '" + this.fieldName + "' dictionary: " + subReaders.size( ) + " readers, " + docs + " documents, "
+              + ( dictionary.size( ) - 1 ) + " values, " + bits + " bits per document, "
+              + dictionary.sizeInBytes( ) + " bytes in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+  }
+
+  public Ordinals getOrdinals( IndexReader reader, int docBase )
+    throws IOException
+  {
+    synchronized ( this.cache )
+      {
+        Ordinals ordinals = this.cache.get( reader.getCoreCacheKey( ) );
+
+        if ( ordinals != null ) return ordinals;
+      }
+
+    return this.fallback.getOrdinals( reader, docBase );
+  }
+
+  public String getValue( IndexReader reader, int docBase, int docId )
+    throws IOException
+  {
+    Ordinals ordinals = this.getOrdinals( reader, docBase );
+
+    return ordinals.getValue( ordinals.getOrd( docId ) );
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    if ( args.length == 0 )
+      {
+        System.err.println( "FieldCacheGlobal: <index...>" );
+        System.exit( 1 );
+      }
+
+    List<IndexReader> readers = new ArrayList<IndexReader>( );
+    for ( String arg : args )
+      {
+        readers.add( IndexOpener.openIndexReader( new File( arg ), 1 ) );
+      }
+
+    FieldCacheGlobal cache = new FieldCacheGlobal( "site" );
+
+    cache.load( readers );
+
+    for ( IndexReader reader : readers )
+      {
+        List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+        ReaderUtil.gatherSubReaders( subReaders, reader );
+
+        System.out.println( "Index: " + reader );
+        System.out.println( "  numDocs: " + reader.numDocs( ) );
+
+        int docBase = 0;
+        for ( IndexReader subReader : subReaders )
+          {
+            Ordinals ordinals = cache.getOrdinals( subReader, docBase );
+
+            for ( int d = 0 ; d < subReader.maxDoc( ) ; d++ )
+              {
+                int ord = ordinals.getOrd( d );
+                System.out.println( "  doc[" + ( docBase + d ) + "]: " + ord + " " + ordinals.getValue( ord ) );
+              }
+
+            docBase += subReader.maxDoc( );
+          }
+      }
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.io.IOException;
+import java.io.File;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Loads the numeric values of a field, such as "date", into a long[]
+ * per reader, for sorting.
+ *
+ * The field may be multi-valued, in which case either the largest or
+ * smallest value of each document is kept, so that sorting newest
+ * first ranks a document by its newest date, and oldest first by its
+ * oldest.  Documents with no value get <code>missing</code>.  Terms
+ * which are not numbers are ignored.
+ *
+ * As with FieldCacheOrdinals, the arrays are cached per reader core.
+ */
+public class FieldCacheLong
+{
+  final String  fieldName;
+  final boolean largest;
+  final long    missing;
+
+  final Map<Object,long[]> cache = new WeakHashMap<Object,long[]>( );
+
+  public FieldCacheLong( String fieldName, boolean largest )
+  {
+    this.fieldName = fieldName;
+    this.largest   = largest;
+    this.missing   = largest ? Long.MIN_VALUE : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the values for the reader, indexed by docId.  The docBase
+   * is not needed here, but like OrdinalFieldCache.getOrdinals(), it
+   * is passed along for implementations backed by a single array.
+   */
+  public long[] getValues( IndexReader reader, int docBase )
+    throws IOException
+  {
+    Object key = reader.getCoreCacheKey( );
+
+    synchronized ( this.cache )
+      {
+        long[] values = this.cache.get( key );
+
+        if ( values != null ) return values;
+      }
+
+    // Load outside the lock, the first thread in wins.
+    long[] values = load( reader );
+
+    synchronized ( this.cache )
+      {
+        long[] existing = this.cache.get( key );
+
+        if ( existing != null ) return existing;
+
+        this.cache.put( key, values );
+      }
+
+    return values;
+  }
+
+  public long[] load( IndexReader reader )
+    throws IOException
+  {
+    long[] values = new long[reader.maxDoc( )];
+    Arrays.fill( values, this.missing );
+
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms( new Term(this.fieldName) );
+    try
+      {
+        do
+          {
+            Term term = termEnum.term();
+            if ( term==null || !this.fieldName.equals( term.field() ) ) break;
+
+            long value;
+            try
+              {
+                value = Long.parseLong( term.text( ) );
+              }
+            catch ( NumberFormatException nfe )
+              {
+                continue ;
+              }
+
+            termDocs.seek( termEnum );
+            while ( termDocs.next() )
+              {
+                int doc = termDocs.doc();
+
+                if ( values[doc] == this.missing
+                     || (   this.largest && value > values[doc] )
+                     || ( ! this.largest && value < values[doc] ) )
+                  {
+                    values[doc] = value;
+                  }
+              }
+          }
+        while (termEnum.next());
+      }
+    finally
+      {
+        termDocs.close();
+        termEnum.close();
+      }
+
+    return values;
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    if ( args.length < 2 )
+      {
+        System.err.println( "FieldCacheLong: <field> <index...>" );
+        System.exit( 1 );
+      }
+
+    FieldCacheLong cache = new FieldCacheLong( args[0], true );
+
+    for ( int i = 1 ; i < args.length ; i++ )
+      {
+        IndexReader reader = IndexReader.open( new MMapDirectory( new File( args[i] ) ), true );
+
+        long[] values = cache.getValues( reader, 0 );
+
+        System.out.println( "Index: " + reader );
+        System.out.println( "  numDocs: " + reader.numDocs( ) );
+
+        for ( int d = 0; d < values.length ; d++ )
+          {
+            System.out.println( "  doc[" + d + "]: " + ( values[d] == cache.missing ? "" : String.valueOf( values[d] ) ) );
+          }
+      }
+  }
+
+}
@@ -19,6 +19,7 @@ package org.archive.tnh;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.WeakHashMap;
 import java.io.IOException;
 import java.io.File;
 
@@ -30,6 +31,8 @@ public class FieldCacheLucene implements FieldCache
 {
   String fieldName;
 
+  final Map<Object,long[]> hashes = new WeakHashMap<Object,long[]>( );
+
   public FieldCacheLucene( String fieldName )
   {
     this.fieldName = fieldName;
@@ -46,6 +49,43 @@ public class FieldCacheLucene implements FieldCache
     return cache[docId];
   }
 
+  /**
+   * Returns the SiteSketch.hash() of the value of each document in the
+   * reader, computed once from Lucene's String[] for the field and
+   * cached per reader core, the same as Lucene caches the Strings.
+   */
+  public long[] getHashes( IndexReader reader )
+    throws IOException
+  {
+    Object key = reader.getCoreCacheKey( );
+
+    synchronized ( this.hashes )
+      {
+        long[] h = this.hashes.get( key );
+
+        if ( h != null ) return h;
+      }
+
+    String[] cache = org.apache.lucene.search.FieldCache.DEFAULT.getStrings( reader, this.fieldName );
+
+    long[] h = new long[cache.length];
+    for ( int i = 0 ; i < cache.length ; i++ )
+      {
+        h[i] = SiteSketch.hash( cache[i] );
+      }
+
+    synchronized ( this.hashes )
+      {
+        long[] existing = this.hashes.get( key );
+
+        if ( existing != null ) return existing;
+
+        this.hashes.put( key, h );
+      }
+
+    return h;
+  }
+
 
   public static void main( String args[] )
     throws Exception
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.apache.lucene.index.ArchiveParallelReader;
+
+/**
+ * OrdinalFieldCache backed by memory-mapped column files, one per
+ * index directory.  The values are off-heap and there is nothing to
+ * load when the first query comes in.
+ *
+ * The column files are registered when the indexes are opened, see
+ * IndexOpener.  A column file is a snapshot of the field for one
+ * commit of its index, identified by the index key.  If the file is
+ * missing, or was written for a different commit, it is re-written
+ * from the index on the spot, if <code>writeColumns</code> is true.
+ * So only the first start-up after an index changes pays for walking
+ * the terms; after that the column is just mapped.  The ColumnWriter
+ * tool can also write them ahead of time.
+ *
+ * Readers without a column file fall back to FieldCacheOrdinals,
+ * which also lower-cases the values, so the two can be mixed.
+ */
+public class FieldCacheMapped implements OrdinalFieldCache
+{
+  public static final Logger LOG = Logger.getLogger( FieldCacheMapped.class.getName() );
+
+  final String             fieldName;
+  final boolean            writeColumns;
+  final FieldCacheOrdinals fallback;
+
+  final Map<Object,Ordinals> cache = new WeakHashMap<Object,Ordinals>( );
+
+  public FieldCacheMapped( String fieldName )
+  {
+    this( fieldName, false );
+  }
+
+  public FieldCacheMapped( String fieldName, boolean writeColumns )
+  {
+    this.fieldName    = fieldName;
+    this.writeColumns = writeColumns;
+    this.fallback     = new FieldCacheOrdinals( fieldName );
+  }
+
+  /**
+   * Returns the name of the column file for this field in the given
+   * index directory.
+   */
+  public File getColumnFile( File directory )
+  {
+    return getColumnFile( directory, this.fieldName );
+  }
+
+  public static File getColumnFile( File directory, String fieldName )
+  {
+    return new File( directory, fieldName + ".column" );
+  }
+
+  /**
+   * Returns a key identifying the commit of the index which the given
+   * reader, opened by IndexOpener on the given directory, has open:
+   * the name of its segments file, which includes the generation, and
+   * the index version.  For a directory of parallel indexes or shards,
+   * the keys of the sub-readers are combined, along with the names of
+   * their sub-directories.
+   *
+   * The key is taken from the reader rather than the directory, since
+   * a newer commit may have been made since the reader was opened.
+   */
+  public static String getIndexKey( IndexReader reader, File directory )
+    throws IOException
+  {
+    IndexReader[] subReaders;
+    if ( reader instanceof ArchiveParallelReader )
+      {
+        subReaders = ((ArchiveParallelReader) reader).getSubReaders( );
+      }
+    else if ( reader instanceof MultiReader )
+      {
+        subReaders = reader.getSequentialSubReaders( );
+      }
+    else
+      {
+        return reader.getIndexCommit( ).getSegmentsFileName( ) + ":" + reader.getVersion( );
+      }
+
+    File[] subDirs = IndexOpener.listSubDirs( directory );
+
+    if ( subDirs == null ) throw new IOException( "Cannot list directory: " + directory );
+
+    if ( subDirs.length != subReaders.length ) throw new IOException( "Reader does not match the sub-directories of: " + directory );
+
+    StringBuilder key = new StringBuilder( "(" );
+    for ( int i = 0 ; i < subDirs.length ; i++ )
+      {
+        if ( key.length( ) > 1 ) key.append( ' ' );
+
+        key.append( subDirs[i].getName( ) ).append( '=' ).append( getIndexKey( subReaders[i], subDirs[i] ) );
+      }
+    key.append( ')' );
+
+    return key.toString( );
+  }
+
+  /**
+   * Map the column file for the given reader, opened on the given
+   * directory, and register it for each of the reader's sub-readers.
+   * Sub-readers which already have a column are left alone, so the
+   * column file of a shard takes precedence over one for all the
+   * shards, and a column file is only written if some sub-reader
+   * doesn't have one yet.
+   *
+   * Returns false if there is no column file which matches the
+   * reader, and none could be written.
+   */
+  public boolean register( IndexReader reader, File directory )
+    throws IOException
+  {
+    List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+    ReaderUtil.gatherSubReaders( subReaders, reader );
+
+    boolean needed = false;
+    synchronized ( this.cache )
+      {
+        for ( IndexReader subReader : subReaders )
+          {
+            needed |= ! this.cache.containsKey( subReader.getCoreCacheKey( ) );
+          }
+      }
+
+    if ( ! needed ) return true;
+
+    File   file = getColumnFile( directory );
+    String key  = getIndexKey( reader, directory );
+
+    MappedOrdinals column = open( file, key, subReaders );
+
+    if ( column == null && this.writeColumns )
+      {
+        long start = System.currentTimeMillis( );
+        try
+          {
+            write( reader, directory, this.fieldName, key );
+
+            LOG.info( "Wrote column file: " + file + " in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+
+            column = open( file, key, subReaders );
+          }
+        catch ( IOException ioe )
+          {
+            LOG.warning( "Cannot write column file: " + file + ": " + ioe );
+          }
+      }
+
+    if ( column == null ) return false;
+
+    synchronized ( this.cache )
+      {
+        int docBase = 0;
+        for ( IndexReader subReader : subReaders )
+          {
+            Object subKey = subReader.getCoreCacheKey( );
+
+            if ( ! this.cache.containsKey( subKey ) )
+              {
+                this.cache.put( subKey, new MappedOrdinals( column, docBase ) );
+              }
+
+            docBase += subReader.maxDoc( );
+          }
+      }
+
+    LOG.info( "Mapped column file: " + file + " (" + column.maxDoc + " documents, " + column.size + " values)" );
+
+    return true;
+  }
+
+  /**
+   * Map the column file, if it exists and matches the index key and
+   * the sub-readers, otherwise return <code>null</code>.
+   */
+  private MappedOrdinals open( File file, String key, List<IndexReader> subReaders )
+  {
+    if ( ! file.exists( ) ) return null;
+
+    MappedOrdinals column;
+    try
+      {
+        column = new MappedOrdinals( file );
+      }
+    catch ( IOException ioe )
+      {
+        LOG.warning( "Ignoring unreadable column file: " + file + ": " + ioe );
+
+        return null;
+      }
+
+    boolean matches = column.key.equals( key ) && column.maxDocs.length == subReaders.size( );
+    for ( int i = 0 ; matches && i < column.maxDocs.length ; i++ )
+      {
+        matches = column.maxDocs[i] == subReaders.get( i ).maxDoc( );
+      }
+
+    if ( ! matches )
+      {
+        LOG.info( "Ignoring column file which does not match its index: " + file );
+
+        return null;
+      }
+
+    return column;
+  }
+
+  public Ordinals getOrdinals( IndexReader reader, int docBase )
+    throws IOException
+  {
+    synchronized ( this.cache )
+      {
+        Ordinals ordinals = this.cache.get( reader.getCoreCacheKey( ) );
+
+        if ( ordinals != null ) return ordinals;
+      }
+
+    return this.fallback.getOrdinals( reader, docBase );
+  }
+
+  public String getValue( IndexReader reader, int docBase, int docId )
+    throws IOException
+  {
+    Ordinals ordinals = this.getOrdinals( reader, docBase );
+
+    return ordinals.getValue( ordinals.getOrd( docId ) );
+  }
+
+  /**
+   * Write the column file for the given reader, opened on the given
+   * index directory.
+   */
+  public static void write( IndexReader reader, File directory, String fieldName )
+    throws IOException
+  {
+    write( reader, directory, fieldName, getIndexKey( reader, directory ) );
+  }
+
+  static void write( IndexReader reader, File directory, String fieldName, String key )
+    throws IOException
+  {
+    List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+    ReaderUtil.gatherSubReaders( subReaders, reader );
+
+    int[] maxDocs = new int[subReaders.size( )];
+    for ( int i = 0 ; i < maxDocs.length ; i++ )
+      {
+        maxDocs[i] = subReaders.get( i ).maxDoc( );
+      }
+
+    // The terms of the top-level reader are merged across all its
+    // sub-readers, giving one dictionary for the whole index.
+    Ordinals ordinals = new FieldCacheOrdinals( fieldName ).load( reader );
+
+    MappedOrdinals.write( ordinals, key, maxDocs, getColumnFile( directory, fieldName ) );
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    if ( args.length < 2 )
+      {
+        System.err.println( "FieldCacheMapped: <field> <index...>" );
+        System.exit( 1 );
+      }
+
+    FieldCacheMapped cache = new FieldCacheMapped( args[0] );
+
+    for ( int i = 1 ; i < args.length ; i++ )
+      {
+        File        directory = new File( args[i] );
+        IndexReader reader    = IndexOpener.openIndexReader( directory, 1 );
+
+        if ( ! cache.register( reader, directory ) )
+          {
+            System.err.println( "No column file for: " + directory );
+            continue ;
+          }
+
+        System.out.println( "Index: " + reader );
+        System.out.println( "  numDocs: " + reader.numDocs( ) );
+
+        List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+        ReaderUtil.gatherSubReaders( subReaders, reader );
+
+        int docBase = 0;
+        for ( IndexReader subReader : subReaders )
+          {
+            Ordinals ordinals = cache.getOrdinals( subReader, docBase );
+
+            for ( int d = 0 ; d < subReader.maxDoc( ) ; d++ )
+              {
+                int ord = ordinals.getOrd( d );
+                System.out.println( "  doc[" + ( docBase + d ) + "]: " + ord + " " + ordinals.getValue( ord ) );
+              }
+
+            docBase += subReader.maxDoc( );
+          }
+      }
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.io.IOException;
+import java.io.File;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * FieldCache which loads the terms of a field into per-reader
+ * Ordinals.  The values are lower-cased once, when they are loaded,
+ * and values which differ only in case share the same ordinal.  So
+ * the values returned by this FieldCache are always lower-case.
+ *
+ * Like Lucene's own FieldCache, the Ordinals are cached per reader
+ * core, so they survive changes to a reader's deletions, and are
+ * dropped when the reader is garbage-collected.
+ */
+public class FieldCacheOrdinals implements OrdinalFieldCache
+{
+  final String fieldName;
+
+  final Map<Object,Ordinals> cache = new WeakHashMap<Object,Ordinals>( );
+
+  public FieldCacheOrdinals( String fieldName )
+  {
+    this.fieldName = fieldName;
+  }
+
+  public Ordinals getOrdinals( IndexReader reader, int docBase )
+    throws IOException
+  {
+    Object key = reader.getCoreCacheKey( );
+
+    synchronized ( this.cache )
+      {
+        Ordinals ordinals = this.cache.get( key );
+
+        if ( ordinals != null ) return ordinals;
+      }
+
+    // Load outside the lock so that loading one reader doesn't block
+    // queries against the others.  If two threads race to load the
+    // same reader, the first one in wins.
+    Ordinals ordinals = load( reader );
+
+    synchronized ( this.cache )
+      {
+        Ordinals existing = this.cache.get( key );
+
+        if ( existing != null ) return existing;
+
+        this.cache.put( key, ordinals );
+      }
+
+    return ordinals;
+  }
+
+  public String getValue( IndexReader reader, int docBase, int docId )
+    throws IOException
+  {
+    Ordinals ordinals = this.getOrdinals( reader, docBase );
+
+    return ordinals.getValue( ordinals.getOrd( docId ) );
+  }
+
+  /**
+   * Walk the terms of the field, assigning an ordinal to each
+   * distinct lower-cased value.
+   */
+  public Ordinals load( IndexReader reader )
+    throws IOException
+  {
+    int[]        ords   = new int[reader.maxDoc( )];
+    List<String> values = new ArrayList<String>( );
+    values.add( null );
+
+    // Only needed if we find a term which isn't already lower-case,
+    // since distinct lower-case terms can't collide with each other.
+    Map<String,Integer> lowered = null;
+
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms( new Term(this.fieldName) );
+    try
+      {
+        do
+          {
+            Term term = termEnum.term();
+            if ( term==null || !this.fieldName.equals( term.field() ) ) break;
+
+            String value = term.text( );
+            String lower = value.toLowerCase( );
+
+            if ( lowered == null && ! lower.equals( value ) )
+              {
+                lowered = new HashMap<String,Integer>( values.size( ) * 2 );
+                for ( int i = 1 ; i < values.size( ) ; i++ )
+                  {
+                    lowered.put( values.get( i ), i );
+                  }
+              }
+
+            int ord;
+            if ( lowered == null )
+              {
+                ord = values.size( );
+                values.add( lower );
+              }
+            else
+              {
+                Integer existing = lowered.get( lower );
+                if ( existing != null )
+                  {
+                    ord = existing;
+                  }
+                else
+                  {
+                    ord = values.size( );
+                    values.add( lower );
+                    lowered.put( lower, ord );
+                  }
+              }
+
+            termDocs.seek( termEnum );
+            while ( termDocs.next() )
+              {
+                ords[termDocs.doc()] = ord;
+              }
+          }
+        while (termEnum.next());
+      }
+    finally
+      {
+        termDocs.close();
+        termEnum.close();
+      }
+
+    return new ArrayOrdinals( ords, values.toArray( new String[values.size()] ) );
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    if ( args.length == 0 )
+      {
+        System.err.println( "FieldCacheOrdinals: <index...>" );
+        System.exit( 1 );
+      }
+
+    FieldCacheOrdinals cache = new FieldCacheOrdinals( "site" );
+
+    for ( String arg : args )
+      {
+        IndexReader reader = IndexReader.open( new MMapDirectory( new File( arg ) ), true );
+
+        Ordinals ordinals = cache.getOrdinals( reader, 0 );
+
+        System.out.println( "Index: " + reader );
+        System.out.println( "  numDocs: " + reader.numDocs( ) );
+        System.out.println( "  numOrds: " + ordinals.size( ) );
+
+        for ( int i = 0; i < reader.maxDoc( ) ; i++ )
+          {
+            int ord = ordinals.getOrd( i );
+            System.out.println( "  doc[" + i + "]: " + ord + " " + ordinals.getValue( ord ) );
+          }
+      }
+  }
+
+}
@@ -16,10 +16,17 @@
 
 package org.archive.tnh;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 import java.io.IOException;
 import java.io.File;
 
@@ -27,17 +34,37 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiSearcher;
+import org.apache.lucene.search.Searchable;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.ReaderUtil;
 
-
+/**
+ * FieldCache which holds the values for all the readers in a single
+ * array, each reader's values starting at its docBase.
+ *
+ * The readers should be loaded up front, by warm(), which loads them
+ * in parallel.  After that, looking up a value takes no lock: the
+ * reader's docBase is found in a ConcurrentMap, which is only updated
+ * after its values have been filled in.  A reader which wasn't warmed,
+ * e.g. after a reopen, is loaded the first time it is seen, under a
+ * lock.
+ *
+ * A reader's values stay where they were loaded, even when it is
+ * searched through a different Searcher which gives it a different
+ * docBase.
+ */
 public class FieldCachePreAllocated implements FieldCache
 {
+  public static final Logger LOG = Logger.getLogger( FieldCachePreAllocated.class.getName() );
+
   final String   fieldName;
   final String[] fieldValueByDocId;
 
   // For sanity checking.
   int expectedNumberOfReaders;
-  Map<IndexReader,Integer> readerDocBases;
+  final ConcurrentMap<IndexReader,Integer> readerDocBases;
 
   public FieldCachePreAllocated( String fieldName, int expectedNumberOfReaders, int totalNumberOfDocuments )
   {
@@ -48,67 +75,179 @@ public class FieldCachePreAllocated implements FieldCache
     // This is the big memory alloc as totalNumberOfDocuments can be > 250 million.
     this.fieldValueByDocId  = new String[totalNumberOfDocuments];
 
-    this.readerDocBases = Collections.synchronizedMap( new HashMap<IndexReader,Integer>( expectedNumberOfReaders ) );
+    this.readerDocBases = new ConcurrentHashMap<IndexReader,Integer>( expectedNumberOfReaders );
   }
 
   public String[] getFieldCache( IndexReader reader, int docBase )
     throws IOException
   {
-    if ( this.readerDocBases.size() > this.expectedNumberOfReaders )
+    getDocBase( reader, docBase );
+
+    return this.fieldValueByDocId;
+  }
+
+  /**
+   * Returns the docBase the reader's values were loaded at, loading
+   * them at the given docBase if they haven't been already.
+   */
+  int getDocBase( IndexReader reader, int docBase )
+    throws IOException
+  {
+    Integer loadedDocBase = this.readerDocBases.get( reader );
+
+    if ( loadedDocBase != null ) return loadedDocBase;
+
+    synchronized ( this )
       {
-        // TODO: Sanity check.  More IndexReaders than we expect.
+        loadedDocBase = this.readerDocBases.get( reader );
+
+        if ( loadedDocBase != null ) return loadedDocBase;
+
+        if ( this.readerDocBases.size() >= this.expectedNumberOfReaders )
+          {
+            // TODO: Sanity check.  More IndexReaders than we expect.
+          }
+
+        load( reader, docBase );
+
+        this.readerDocBases.put( reader, docBase );
       }
 
-    synchronized ( this )
+    return docBase;
+  }
+
+  /**
+   * Load the terms and fill the reader's part of the array.
+   */
+  private void load( IndexReader reader, int docBase )
+    throws IOException
+  {
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms( new Term(this.fieldName) );
+    try
       {
-        Integer expectedDocBase = this.readerDocBases.get( reader );
-        if ( expectedDocBase == null )
+        do 
           {
-            // Load the terms and fill the array.
-            TermDocs termDocs = reader.termDocs();
-            TermEnum termEnum = reader.terms( new Term(this.fieldName) );
-            try
+            Term term = termEnum.term();
+            if ( term==null || !this.fieldName.equals( term.field() ) ) break;
+            //String termval = term.text().intern();
+            String termval = term.text();
+            termDocs.seek( termEnum );
+            while ( termDocs.next() )
               {
-                do 
-                  {
-                    Term term = termEnum.term();
-                    if ( term==null || !this.fieldName.equals( term.field() ) ) break;
-                    //String termval = term.text().intern();
-                    String termval = term.text();
-                    termDocs.seek( termEnum );
-                    while ( termDocs.next() )
-                      {
-                        this.fieldValueByDocId[termDocs.doc() + docBase] = termval;
-                      }
-                  }
-                while (termEnum.next());
+                this.fieldValueByDocId[termDocs.doc() + docBase] = termval;
               }
-            finally
+          }
+        while (termEnum.next());
+      }
+    finally
+      {
+        termDocs.close();
+        termEnum.close();
+      }
+  }
+
+  /**
+   * Load all the sub-readers of the given searcher, at the docBases
+   * the searcher gives them, using <code>numThreads</code> threads.
+   * The sub-readers fill disjoint ranges of the array, so they can be
+   * loaded concurrently.
+   */
+  public void warm( Searchable searcher, int numThreads )
+    throws IOException
+  {
+    long start = System.currentTimeMillis( );
+
+    final List<IndexReader> readers  = new ArrayList<IndexReader>( );
+    final List<Integer>     docBases = new ArrayList<Integer>( );
+    gatherReaders( searcher, 0, readers, docBases );
+
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+    try
+      {
+        List<Future<?>> futures = new ArrayList<Future<?>>( readers.size( ) );
+        for ( int i = 0 ; i < readers.size( ) ; i++ )
+          {
+            final IndexReader reader  = readers.get( i );
+            final int         docBase = docBases.get( i );
+
+            futures.add( executor.submit( new Callable<Void>( )
               {
-                termDocs.close();
-                termEnum.close();
-              }
-            
-            expectedDocBase = docBase;
-            
-            this.readerDocBases.put( reader, docBase );
+                public Void call( )
+                  throws IOException
+                {
+                  if ( readerDocBases.containsKey( reader ) ) return null;
+
+                  load( reader, docBase );
+
+                  // Publish only once the values are filled in.
+                  readerDocBases.putIfAbsent( reader, docBase );
+
+                  return null;
+                }
+              } ) );
           }
 
-        if ( expectedDocBase != docBase )
+        for ( Future<?> future : futures )
           {
-            // TODO: Sanity check.  The docBase has changed.
+            future.get( );
           }
       }
-    
-    return this.fieldValueByDocId;
+    catch ( InterruptedException ie )
+      {
+        Thread.currentThread( ).interrupt( );
+
+        throw new IOException( "Interrupted while warming: " + this.fieldName );
+      }
+    catch ( ExecutionException ee )
+      {
+        if ( ee.getCause( ) instanceof IOException ) throw (IOException) ee.getCause( );
+
+        throw new RuntimeException( ee.getCause( ) );
+      }
+    finally
+      {
+        executor.shutdownNow( );
+      }
+
+    LOG.info( "Warmed '" + this.fieldName + "': " + readers.size( ) + " readers in " + ( System.currentTimeMillis( ) - start ) + "ms" );
   }
 
-  public String getValue( IndexReader reader, int docBase, int docId )
+  /**
+   * Recursively gather the sub-readers of the searcher, along with
+   * their docBases, in the same order the searcher visits them.
+   */
+  private static void gatherReaders( Searchable searchable, int docBase, List<IndexReader> readers, List<Integer> docBases )
     throws IOException
   {
-    String[] cache = this.getFieldCache( reader, docBase );
+    if ( searchable instanceof MultiSearcher )
+      {
+        for ( Searchable sub : ((MultiSearcher) searchable).getSearchables( ) )
+          {
+            gatherReaders( sub, docBase, readers, docBases );
 
-    return cache[docBase+docId];
+            docBase += sub.maxDoc( );
+          }
+      }
+    else if ( searchable instanceof IndexSearcher )
+      {
+        List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+        ReaderUtil.gatherSubReaders( subReaders, ((IndexSearcher) searchable).getIndexReader( ) );
+
+        for ( IndexReader subReader : subReaders )
+          {
+            readers.add( subReader );
+            docBases.add( docBase );
+
+            docBase += subReader.maxDoc( );
+          }
+      }
+  }
+
+  public String getValue( IndexReader reader, int docBase, int docId )
+    throws IOException
+  {
+    return this.fieldValueByDocId[getDocBase( reader, docBase ) + docId];
   }
 
   public static void main( String args[] )
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Least-recently used cache of the Filters for restricting a search
+ * to a set of values of a field, such as the site, type, collection
+ * or date.  Each Filter is a CachingWrapperFilter, which keeps the
+ * bitset of matching documents of each reader, so that the postings
+ * of a popular restriction are only walked once per reader, rather
+ * than once per query.
+ *
+ * The Filters are keyed by the field and the set of values, so the
+ * order of the values does not matter.
+ */
+public class FilterCache
+{
+  public static final int DEFAULT_MAX_FILTERS = 256;
+
+  final DefaultQueryTranslator translator;
+  final int                    maxFilters;
+
+  final Map<List<String>,Filter> filters = new LinkedHashMap<List<String>,Filter>( 16, 0.75f, true )
+    {
+      protected boolean removeEldestEntry( Map.Entry<List<String>,Filter> eldest )
+      {
+        return size( ) > maxFilters;
+      }
+    };
+
+  public FilterCache( DefaultQueryTranslator translator )
+  {
+    this( translator, DEFAULT_MAX_FILTERS );
+  }
+
+  public FilterCache( DefaultQueryTranslator translator, int maxFilters )
+  {
+    if ( translator == null ) throw new IllegalArgumentException( "translator cannot be null" );
+    if ( maxFilters < 1     ) throw new IllegalArgumentException( "maxFilters must be > 0" );
+
+    this.translator = translator;
+    this.maxFilters = maxFilters;
+  }
+
+  /**
+   * Returns the cached Filter matching any of the values of the
+   * field, or <code>null</code> if there are no values.
+   */
+  public Filter getFilter( String field, String[] values )
+  {
+    if ( values == null || values.length == 0 ) return null;
+
+    Set<String> sorted = new TreeSet<String>( Arrays.asList( values ) );
+
+    List<String> key = new ArrayList<String>( sorted.size( ) + 1 );
+    key.add( field );
+    key.addAll( sorted );
+
+    synchronized ( this.filters )
+      {
+        Filter filter = this.filters.get( key );
+
+        if ( filter == null )
+          {
+            filter = new CachingWrapperFilter( this.translator.buildFilter( field, sorted.toArray( new String[sorted.size()] ) ) );
+
+            this.filters.put( key, filter );
+          }
+
+        return filter;
+      }
+  }
+
+  public int size( )
+  {
+    synchronized ( this.filters )
+      {
+        return this.filters.size( );
+      }
+  }
+
+  /**
+   * Returns a Filter matching the documents matched by all the given
+   * Filters, or <code>null</code> if there are none.
+   */
+  public static Filter and( List<Filter> filters )
+  {
+    if ( filters.isEmpty( )   ) return null;
+    if ( filters.size( ) == 1 ) return filters.get( 0 );
+
+    return new AndFilter( filters );
+  }
+
+  /**
+   * Iterates over the documents of the first Filter, checking each
+   * one against the bits of the others.  The cached DocIdSets of a
+   * CachingWrapperFilter are bitsets, so that needs no copying.
+   */
+  static class AndFilter extends Filter
+  {
+    final Filter[] filters;
+
+    AndFilter( List<Filter> filters )
+    {
+      this.filters = filters.toArray( new Filter[filters.size()] );
+    }
+
+    public DocIdSet getDocIdSet( IndexReader reader )
+      throws IOException
+    {
+      DocIdSet first = this.filters[0].getDocIdSet( reader );
+
+      if ( first == null ) return null;
+
+      final Bits[] others = new Bits[this.filters.length - 1];
+      for ( int i = 1 ; i < this.filters.length ; i++ )
+        {
+          DocIdSet set = this.filters[i].getDocIdSet( reader );
+
+          if ( set == null ) return null;
+
+          others[i-1] = bits( set, reader.maxDoc( ) );
+        }
+
+      return new FilteredDocIdSet( first )
+        {
+          protected boolean match( int docId )
+          {
+            for ( Bits bits : others )
+              {
+                if ( ! bits.get( docId ) ) return false;
+              }
+
+            return true;
+          }
+        };
+    }
+
+    static Bits bits( DocIdSet set, int maxDoc )
+      throws IOException
+    {
+      if ( set instanceof Bits ) return (Bits) set;
+
+      OpenBitSet bits = new OpenBitSet( maxDoc );
+
+      DocIdSetIterator i = set.iterator( );
+      if ( i != null )
+        {
+          for ( int doc = i.nextDoc( ) ; doc != DocIdSetIterator.NO_MORE_DOCS ; doc = i.nextDoc( ) )
+            {
+              bits.fastSet( doc );
+            }
+        }
+
+      return bits;
+    }
+
+    public boolean equals( Object o )
+    {
+      return o instanceof AndFilter && Arrays.equals( this.filters, ((AndFilter) o).filters );
+    }
+
+    public int hashCode( )
+    {
+      return Arrays.hashCode( this.filters );
+    }
+
+    public String toString( )
+    {
+      return "AndFilter(" + Arrays.toString( this.filters ) + ")";
+    }
+  }
+
+}
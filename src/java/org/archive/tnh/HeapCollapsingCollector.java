@@ -0,0 +1,507 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Drop-in replacement for the CollapsingCollector which keeps the
+ * top N hits in an indexed binary min-heap rather than re-sorting
+ * two arrays every time a hit is accepted.
+ *
+ * The lowest-scoring hit is always at the root of the heap, so
+ * rejecting a non-competitive candidate is a single comparison, as
+ * before.  The hits for each site are chained together and the head
+ * of each chain is found via a hash on the (lower-cased) site, so
+ * finding the hit to replace is O(hitsPerSite).  Since every entry
+ * knows its own position in the heap, inserting or replacing a hit
+ * is then O(log N).
+ *
+ * The results returned by getHits() are the same as those of the
+ * CollapsingCollector, with two exceptions: documents that have no
+ * site, which this class collapses together like any other site; and
+ * hits tied on score with the lowest hit, which are always decided
+ * by docId rather than by the order in which they were collected.
+ *
+ * Given a FieldCacheLong, the hits are instead ranked on a numeric
+ * field, such as the date, descending or ascending, then optionally
+ * by score, and finally by docId.  The score is only computed for
+ * hits which are not already ruled out by their value, and not at
+ * all if it is not used.  Cursors are not supported when sorting.
+ */
+public class HeapCollapsingCollector extends AbstractCollapsingCollector
+{
+  /**
+   * A collected hit, along with its position in the heap and the
+   * next hit in the chain of hits for the same site.
+   */
+  static final class Entry
+  {
+    int    id;
+    float  score;
+    long   value;
+    String site;
+    String key;
+    int    heapIndex;
+    Entry  nextInSite;
+  }
+
+  final FieldCache     siteCache;
+  final FieldCacheLong valueCache;
+  final boolean        descending;
+  final boolean        scoreTies;
+  final int            maxNumResults;
+  final int            hitsPerSite;
+
+  IndexReader  reader   = null;
+  int          docBase  = 0;
+  long[]       values   = null;
+  Scorer       scorer   = null;
+  Cursor       after    = null;
+  FacetCounter facets   = null;
+  SiteSketch   sketch   = null;
+  Ordinals     ordinals = null;
+  long[]       hashes   = null;
+
+  final Entry[]          heap;
+  final Map<String,Entry> sites;
+
+  int size = 0;
+
+  int numUncollapsedHits     = 0;
+  int numCandidatesPassScore = 0;
+  int numCandidatesFailScore = 0;
+  int numCandidatesPassSite  = 0;
+  int numCandidatesFailSite  = 0;
+
+  public HeapCollapsingCollector( final FieldCache siteCache, final int maxNumResults )
+  {
+    this( siteCache, maxNumResults, 1 );
+  }
+
+  public HeapCollapsingCollector( final FieldCache siteCache, final int maxNumResults, final int hitsPerSite )
+  {
+    this( siteCache, null, true, true, maxNumResults, hitsPerSite );
+  }
+
+  /**
+   * Rank the hits on the values of the <code>valueCache</code>, or on
+   * score if it is <code>null</code>.  The valueCache should keep the
+   * largest value of each document when sorting in descending order,
+   * and the smallest when sorting in ascending order.  If
+   * <code>scoreTies</code> is true, hits with the same value are
+   * ranked by score.
+   */
+  public HeapCollapsingCollector( final FieldCache siteCache, final FieldCacheLong valueCache, final boolean descending, final boolean scoreTies, final int maxNumResults, final int hitsPerSite )
+  {
+    this.siteCache      = siteCache;
+    this.valueCache     = valueCache;
+    this.descending     = descending;
+    this.scoreTies      = scoreTies || valueCache == null;
+    this.maxNumResults  = maxNumResults;
+    this.hitsPerSite    = hitsPerSite;
+
+    this.heap  = new Entry[maxNumResults];
+    this.sites = new HashMap<String,Entry>( );
+  }
+
+  public void setCursor( Cursor after )
+  {
+    if ( this.valueCache != null ) super.setCursor( after );
+
+    this.after = after;
+  }
+
+  public void setFacets( FacetCounter facets )
+  {
+    this.facets = facets;
+  }
+
+  /**
+   * Only supported with an OrdinalFieldCache or a FieldCacheLucene,
+   * whose pre-computed hashes are cheap enough to look up for every
+   * raw hit.
+   */
+  public void setSketch( SiteSketch sketch )
+  {
+    if ( ! ( this.siteCache instanceof OrdinalFieldCache || this.siteCache instanceof FieldCacheLucene ) ) super.setSketch( sketch );
+
+    this.sketch = sketch;
+  }
+
+  public boolean acceptsDocsOutOfOrder( )
+  {
+    return true;
+  }
+
+  public void setNextReader( IndexReader reader, int docBase )
+    throws IOException
+  {
+    this.reader  = reader;
+    this.docBase = docBase;
+
+    if ( this.valueCache != null ) this.values = this.valueCache.getValues( reader, docBase );
+
+    if ( this.sketch != null )
+      {
+        if ( this.siteCache instanceof OrdinalFieldCache ) this.ordinals = ((OrdinalFieldCache) this.siteCache).getOrdinals( reader, docBase );
+        else                                   this.hashes   = ((FieldCacheLucene)  this.siteCache).getHashes( reader );
+      }
+
+    if ( this.facets != null ) this.facets.setNextReader( reader );
+  }
+
+  public void setScorer( Scorer scorer )
+  {
+    this.scorer = scorer;
+  }
+
+  public void collect( int docId )
+    throws IOException
+  {
+    this.numUncollapsedHits++;
+
+    if ( this.facets != null ) this.facets.collect( docId );
+    if ( this.sketch != null ) this.sketch.add( this.hashes != null ? this.hashes[docId] : this.ordinals.getHash( this.ordinals.getOrd( docId ) ), this.docBase + docId );
+
+    final int  id    = this.docBase + docId;
+    final long value = this.values == null ? 0 : this.values[docId];
+
+    // When sorting, reject hits whose value alone ranks them below
+    // the lowest hit before computing the score.
+    if ( this.values != null && this.size == this.maxNumResults && compare( this.heap[0].value, value ) > 0 )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    final float score = this.scoreTies ? this.scorer.score( ) : 0;
+
+    // Compare against the lowest hit on docId as well, so that ties
+    // are broken the same way no matter what order the docs are
+    // collected in, and a Cursor never skips over a tied hit.
+    if ( this.size == this.maxNumResults && compare( this.heap[0], value, score, id ) >= 0 )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    // Skip hits which were already shown on earlier pages.
+    if ( this.after != null && ! this.after.isAfter( score, id ) )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    String site = this.siteCache.getValue( this.reader, this.docBase, docId );
+
+    // Use "" rather than null to keep hashing simple.
+    if ( site == null ) site = "";
+
+    if ( this.hitsPerSite == 0 )
+      {
+        this.numCandidatesPassScore++;
+
+        insert( id, score, value, site, null );
+
+        return ;
+      }
+
+    String key = site.toLowerCase( );
+
+    // Walk the chain of hits for this site, counting them and
+    // finding the lowest-scoring one as we go.  Hits from this site
+    // on earlier pages count too.
+    int   count  = this.after == null ? 0 : this.after.getCount( key );
+    Entry lowest = null;
+    for ( Entry e = this.sites.get( key ); e != null ; e = e.nextInSite )
+      {
+        count++;
+
+        if ( lowest == null || compare( e, lowest ) < 0 ) lowest = e;
+      }
+
+    // There is still room for more hits from this site, so the
+    // candidate replaces the overall lowest-scoring hit.
+    if ( count < this.hitsPerSite )
+      {
+        this.numCandidatesPassScore++;
+
+        insert( id, score, value, site, key );
+
+        return ;
+      }
+
+    // The site's hits were all used up on earlier pages.
+    if ( lowest == null )
+      {
+        this.numCandidatesFailSite++;
+
+        return ;
+      }
+
+    // The candidate replaces the lowest hit for the site if it
+    // ranks higher, which for the *same* score means a lower docId.
+    if ( compare( lowest, value, score, id ) < 0 )
+      {
+        this.numCandidatesPassSite++;
+
+        lowest.id    = id;
+        lowest.score = score;
+        lowest.value = value;
+
+        siftDown( lowest.heapIndex );
+      }
+    else
+      {
+        this.numCandidatesFailSite++;
+      }
+  }
+
+  /**
+   * Adds a hit to the heap.  If the heap is full, the lowest-scoring
+   * hit at the root is evicted and its Entry re-used.
+   */
+  private void insert( int id, float score, long value, String site, String key )
+  {
+    Entry e;
+    if ( this.size < this.maxNumResults )
+      {
+        e = new Entry( );
+        e.heapIndex = this.size;
+        this.heap[this.size++] = e;
+      }
+    else
+      {
+        e = this.heap[0];
+
+        unlink( e );
+      }
+
+    e.id    = id;
+    e.score = score;
+    e.value = value;
+    e.site  = site;
+    e.key   = key;
+
+    if ( key != null )
+      {
+        e.nextInSite = this.sites.put( key, e );
+      }
+
+    siftUp  ( e.heapIndex );
+    siftDown( e.heapIndex );
+  }
+
+  /**
+   * Removes the given Entry from the chain of hits for its site.
+   */
+  private void unlink( Entry e )
+  {
+    if ( e.key == null ) return ;
+
+    Entry head = this.sites.get( e.key );
+
+    if ( head == e )
+      {
+        if ( e.nextInSite == null )
+          {
+            this.sites.remove( e.key );
+          }
+        else
+          {
+            this.sites.put( e.key, e.nextInSite );
+          }
+      }
+    else
+      {
+        Entry prev = head;
+        for ( ; prev.nextInSite != e ; prev = prev.nextInSite )
+          ;
+
+        prev.nextInSite = e.nextInSite;
+      }
+
+    e.nextInSite = null;
+  }
+
+  private int compare( Entry e1, Entry e2 )
+  {
+    return compare( e1, e2.value, e2.score, e2.id );
+  }
+
+  /**
+   * Negative if a hit with value v1 ranks lower than one with v2,
+   * positive if higher, on the value alone.
+   */
+  private int compare( long v1, long v2 )
+  {
+    if ( v1 == v2 ) return 0;
+
+    return ( v1 < v2 ) == this.descending ? -1 : 1;
+  }
+
+  /**
+   * Negative if the Entry ranks lower than a hit with the given
+   * value, score and id, positive if higher.  Without a valueCache,
+   * this is the same ordering as the
+   * CollapsingCollector.SCORE_COMPARATOR: lower scores first, and for
+   * equal scores, higher ids first.
+   */
+  private int compare( Entry e, long value, float score, int id )
+  {
+    if ( e.value != value ) return compare( e.value, value );
+
+    if ( this.scoreTies && e.score != score ) return e.score < score ? -1 : 1;
+
+    if ( e.id != id ) return e.id > id ? -1 : 1;
+
+    return 0;
+  }
+
+  private void siftUp( int i )
+  {
+    final Entry e = this.heap[i];
+
+    while ( i > 0 )
+      {
+        int parent = ( i - 1 ) >>> 1;
+
+        if ( compare( e, this.heap[parent] ) >= 0 ) break;
+
+        this.heap[i] = this.heap[parent];
+        this.heap[i].heapIndex = i;
+
+        i = parent;
+      }
+
+    this.heap[i] = e;
+    e.heapIndex  = i;
+  }
+
+  private void siftDown( int i )
+  {
+    final Entry e = this.heap[i];
+
+    while ( true )
+      {
+        int child = ( i << 1 ) + 1;
+
+        if ( child >= this.size ) break;
+
+        if ( child + 1 < this.size && compare( this.heap[child+1], this.heap[child] ) < 0 ) child++;
+
+        if ( compare( this.heap[child], e ) >= 0 ) break;
+
+        this.heap[i] = this.heap[child];
+        this.heap[i].heapIndex = i;
+
+        i = child;
+      }
+
+    this.heap[i] = e;
+    e.heapIndex  = i;
+  }
+
+  /**
+   * Returns a Comparator which orders Hits the same way as a
+   * collector sorting on values, lowest-ranked first, like the
+   * CollapsingCollector.SCORE_COMPARATOR.
+   */
+  public static Comparator<Hit> comparator( final boolean descending, final boolean scoreTies )
+  {
+    return new Comparator<Hit>( )
+      {
+        public int compare( Hit h1, Hit h2 )
+        {
+          if ( h1.value != h2.value ) return ( h1.value < h2.value ) == descending ? -1 : 1;
+
+          if ( scoreTies && h1.score != h2.score ) return h1.score < h2.score ? -1 : 1;
+
+          if ( h1.id != h2.id ) return h1.id > h2.id ? -1 : 1;
+
+          return 0;
+        }
+      };
+  }
+
+  /**
+   * Return array of Hits, highest-ranked first.  If there were no
+   * hits, the array is of size 0.
+   */
+  public Hit[] getHits()
+  {
+    Hit[] hits = new Hit[this.size];
+
+    for ( int i = 0; i < this.size ; i++ )
+      {
+        Entry e = this.heap[i];
+
+        hits[i] = new Hit( e.id, e.score, e.site );
+        hits[i].value = e.value;
+      }
+
+    Arrays.sort( hits, Collections.reverseOrder( this.valueCache == null ? CollapsingCollector.SCORE_COMPARATOR : comparator( this.descending, this.scoreTies ) ) );
+
+    return hits;
+  }
+
+  /**
+   * Returns the number of collapsed hits, which will match the size
+   * of the array returned by getHits().
+   */
+  public int getNumHits( )
+  {
+    return this.size;
+  }
+
+  /**
+   * Returns the total number of uncollapsed, or "raw", hits.
+   */
+  public int getNumUncollapsedHits( )
+  {
+    return this.numUncollapsedHits;
+  }
+
+  public int getNumCandidatesPassScore( )
+  {
+    return this.numCandidatesPassScore;
+  }
+
+  public int getNumCandidatesFailScore( )
+  {
+    return this.numCandidatesFailScore;
+  }
+
+  public int getNumCandidatesPassSite( )
+  {
+    return this.numCandidatesPassSite;
+  }
+
+  public int getNumCandidatesFailSite( )
+  {
+    return this.numCandidatesFailSite;
+  }
+
+}
@@ -24,6 +24,24 @@ public class Hit implements Comparable<Hit>
   public int    id;
   public float  score;
   public String site;
+
+  /**
+   * The lower-cased values of the collapse keys, if the hit was
+   * collapsed on more than just the site.
+   */
+  public String[] keys;
+
+  /**
+   * The value the hit was sorted on, if it was sorted on a field
+   * rather than by score.
+   */
+  public long value;
+
+  /**
+   * The name of the index the hit came from, filled in by Search, or
+   * <code>null</code> if not known.
+   */
+  public String indexName;
   
   public Hit( int id, float score, String site )
   {
@@ -18,12 +18,17 @@ package org.archive.tnh;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
 
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.Searchable;
 import org.apache.lucene.search.MultiSearcher;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
@@ -86,9 +91,40 @@ import org.apache.lucene.index.ArchiveParallelReader;
  *
  * In all of the above examples, only the collection-level indexes are
  * in the Map&lt;String,Searcher&gt;, and thus able to be looked-up by name.
+ *
+ * If a FieldCacheMapped is given, the column file in each directory
+ * opened as an IndexReader, if any, is mapped as it is opened.
+ *
+ * The plain Lucene indexes are opened with an MMapDirectory, unless
+ * another magic file, "_directory", in the index directory or any
+ * directory above it in the tree, says otherwise.  It contains one of:
+ *
+ *   mmap   MMapDirectory, the default.
+ *   nio    NIOFSDirectory, for huge, rarely searched indexes, which
+ *          would take up too much address space mapped.
+ *   ram    RAMDirectory, copied onto the heap, for small, very
+ *          frequently searched ones.
+ *
+ * optionally followed by "prefetch", to read through the index files
+ * before opening them, so that the first searches after a restart
+ * don't wait on the disk.  The nearest "_directory" file wins, so
+ * one in the root sets the default for all the collections.  An index
+ * in a RAMDirectory never sees changes made to it on disk after it
+ * is opened.
+ *
+ * The plain Lucene indexes at the leaves of the tree are opened
+ * concurrently, on a pool of <code>numThreads</code>, then put
+ * together as above.  The time to open each one is logged.
  */
 public class IndexOpener
 {
+  public static final Logger LOG = Logger.getLogger( IndexOpener.class.getName() );
+
+  /**
+   * The default number of threads opening indexes at once.
+   */
+  public static final int DEFAULT_OPEN_THREADS = 8;
+
   public static FileFilter DIR_FILTER = new FileFilter( )
     {
       public boolean accept( File pathname )
@@ -97,6 +133,24 @@ public class IndexOpener
       }
     };
   
+  public static final String DIRECTORY_FILE = "_directory";
+
+  /**
+   * Returns the sub-directories of the given directory, sorted by
+   * name, or <code>null</code> if it cannot be listed.  The order of
+   * File.listFiles() is unspecified, so they are sorted such that the
+   * sub-readers of a parallel or sharded index are always in the same
+   * order, the one FieldCacheMapped.getIndexKey() relies on.
+   */
+  public static File[] listSubDirs( File directory )
+  {
+    File[] subDirs = directory.listFiles( DIR_FILTER );
+
+    if ( subDirs != null ) Arrays.sort( subDirs );
+
+    return subDirs;
+  }
+
   public static FileFilter PARALLEL_FILTER = new FileFilter( )
     {
       public boolean accept( File pathname )
@@ -120,6 +174,27 @@ public class IndexOpener
    */
   public static Map<String,Searcher> open( String indexPath, int indexDivisor )
     throws IOException
+  {
+    return open( indexPath, indexDivisor, null );
+  }
+
+  /**
+   * Open an index tree rooted at the given <code>indexPath</code>,
+   * registering any column files with <code>columns</code>, which may
+   * be <code>null</code>.
+   */
+  public static Map<String,Searcher> open( String indexPath, int indexDivisor, FieldCacheMapped columns )
+    throws IOException
+  {
+    return open( indexPath, indexDivisor, columns, DEFAULT_OPEN_THREADS );
+  }
+
+  /**
+   * Open an index tree rooted at the given <code>indexPath</code>, as
+   * above, opening up to <code>numThreads</code> indexes at once.
+   */
+  public static Map<String,Searcher> open( String indexPath, int indexDivisor, FieldCacheMapped columns, int numThreads )
+    throws IOException
   {
     if ( indexPath == null ) throw new IllegalArgumentException( "indexPath cannot be null" );
     if ( indexDivisor < 1  ) throw new IllegalArgumentException( "indexDivisor must be >= 1" );
@@ -128,39 +203,58 @@ public class IndexOpener
 
     if ( ! indexDir.isDirectory() ) throw new IllegalArgumentException( "indexPath is not a directory: " + indexPath );
 
+    long start = System.currentTimeMillis( );
+
     // The map of name->searcher to be returned.
     Map<String,Searcher> searchers = new HashMap<String,Searcher>( );
 
     // If there are no sub-dirs, then try to open this directory as an index.
-    File[] subDirs = indexDir.listFiles( DIR_FILTER );
+    File[] subDirs = listSubDirs( indexDir );
     
-    if ( subDirs == null || subDirs.length == 0 )
+    Leaves leaves = new Leaves( indexDivisor, numThreads, indexDir );
+    try
       {
-        IndexSearcher searcher = new IndexSearcher( IndexReader.open( new MMapDirectory( indexDir ), new KeepOnlyLastCommitDeletionPolicy(), true, indexDivisor ) );
-        
-        searchers.put( "", searcher );
-        
-        return searchers;
-      }
+        if ( subDirs == null || subDirs.length == 0 )
+          {
+            IndexSearcher searcher = new IndexSearcher( openIndexReader( indexDir, columns, leaves ) );
 
-    // There are sub-dirs.  Try opening each as a subSearcher.
-    Searchable subSearchers[] = new Searchable[subDirs.length];
-    for ( int i = 0 ; i < subDirs.length ; i++ )
+            searchers.put( "", searcher );
+          }
+        else
+          {
+            // Start opening all the indexes, before putting any of
+            // them together.
+            for ( File subDir : subDirs )
+              {
+                leaves.submit( subDir );
+              }
+
+            // There are sub-dirs.  Try opening each as a subSearcher.
+            Searchable subSearchers[] = new Searchable[subDirs.length];
+            for ( int i = 0 ; i < subDirs.length ; i++ )
+              {
+                File subDir = subDirs[i];
+
+                IndexSearcher subSearcher = new IndexSearcher( openIndexReader( subDir, columns, leaves ) );
+
+                searchers.put( subDir.getName( ), subSearcher );
+
+                subSearchers[i] = subSearcher;
+              }
+
+            // Finally, we create a single MultiSearcher that spans all
+            // the others.  Put it in the map with a key of "".
+            MultiSearcher multi = new MultiSearcher( subSearchers );
+
+            searchers.put( "", multi );
+          }
+      }
+    finally
       {
-        File subDir = subDirs[i];
-        
-        IndexSearcher subSearcher = new IndexSearcher( openIndexReader( subDir, indexDivisor ) );
-        
-        searchers.put( subDir.getName( ), subSearcher );
-        
-        subSearchers[i] = subSearcher;
+        leaves.close( );
       }
-    
-    // Finally, we create a single MultiSearcher that spans all
-    // the others.  Put it in the map with a key of "".
-    MultiSearcher multi = new MultiSearcher( subSearchers );
-    
-    searchers.put( "", multi );
+
+    LOG.info( "Opened " + leaves.count + " indexes under " + indexPath + " in " + ( System.currentTimeMillis( ) - start ) + "ms" );
 
     return searchers;
   }
@@ -174,25 +268,85 @@ public class IndexOpener
    */
   public static IndexReader openIndexReader( File directory, int indexDivisor )
     throws IOException
+  {
+    return openIndexReader( directory, indexDivisor, null );
+  }
+
+  /**
+   * Opens an IndexReader for the given directory, as above, then
+   * registers the column file for it, if there is one.
+   */
+  public static IndexReader openIndexReader( File directory, int indexDivisor, FieldCacheMapped columns )
+    throws IOException
+  {
+    return openIndexReader( directory, indexDivisor, columns, DEFAULT_OPEN_THREADS );
+  }
+
+  /**
+   * Opens an IndexReader for the given directory, as above, opening
+   * up to <code>numThreads</code> indexes at once.
+   */
+  public static IndexReader openIndexReader( File directory, int indexDivisor, FieldCacheMapped columns, int numThreads )
+    throws IOException
+  {
+    return openIndexReader( directory, indexDivisor, columns, numThreads, directory );
+  }
+
+  /**
+   * Opens an IndexReader for the given directory, as above, where
+   * the directory is somewhere under <code>root</code>, which is
+   * searched for "_directory" files too.
+   */
+  static IndexReader openIndexReader( File directory, int indexDivisor, FieldCacheMapped columns, int numThreads, File root )
+    throws IOException
   {
     if ( directory == null          ) throw new IllegalArgumentException( "directory cannot be null" );
     if ( ! directory.isDirectory( ) ) throw new IllegalArgumentException( "not a directory: " + directory );
 
-    File[] subDirs = directory.listFiles( DIR_FILTER );
+    Leaves leaves = new Leaves( indexDivisor, numThreads, root );
+    try
+      {
+        leaves.submit( directory );
+
+        return openIndexReader( directory, columns, leaves );
+      }
+    finally
+      {
+        leaves.close( );
+      }
+  }
+
+  private static IndexReader openIndexReader( File directory, FieldCacheMapped columns, Leaves leaves )
+    throws IOException
+  {
+    IndexReader reader = openIndexReaderInternal( directory, columns, leaves );
+
+    if ( columns != null ) columns.register( reader, directory );
+
+    return reader;
+  }
+
+  private static IndexReader openIndexReaderInternal( File directory, FieldCacheMapped columns, Leaves leaves )
+    throws IOException
+  {
+    if ( directory == null          ) throw new IllegalArgumentException( "directory cannot be null" );
+    if ( ! directory.isDirectory( ) ) throw new IllegalArgumentException( "not a directory: " + directory );
+
+    File[] subDirs = listSubDirs( directory );
 
     // If there are no sub-dirs, just open this as an IndexReader
     if ( subDirs.length == 0 )
       {
-        return IndexReader.open( new MMapDirectory( directory ), new KeepOnlyLastCommitDeletionPolicy(), true, indexDivisor );
+        return leaves.get( directory );
       }
     
     // This directory has sub-dirs, and they are parallel.
-    if ( directory.listFiles( PARALLEL_FILTER ).length == 1 )
+    if ( isParallel( directory ) )
       {
         ArchiveParallelReader preader = new ArchiveParallelReader( );
         for ( int i = 0; i < subDirs.length ; i++ )
           {
-            preader.add( IndexReader.open( new MMapDirectory( subDirs[i] ), new KeepOnlyLastCommitDeletionPolicy(), true, indexDivisor ) );
+            preader.add( leaves.get( subDirs[i] ) );
           }
         
         return preader;
@@ -203,12 +357,263 @@ public class IndexOpener
     IndexReader[] subReaders = new IndexReader[subDirs.length];
     for ( int i = 0 ; i < subDirs.length ; i++ )
       {
-        subReaders[i] = openIndexReader( subDirs[i], indexDivisor );
+        subReaders[i] = openIndexReader( subDirs[i], columns, leaves );
       }
 
     IndexReader multi = new MultiReader( subReaders, true );
 
     return multi;
   }
-  
+
+  static boolean isParallel( File directory )
+  {
+    return directory.listFiles( PARALLEL_FILTER ).length == 1;
+  }
+
+  /**
+   * Open a plain Lucene index, under <code>root</code>, as its
+   * "_directory" file says, logging how long it took.
+   */
+  static IndexReader openLeaf( File directory, int indexDivisor, File root )
+    throws IOException
+  {
+    long start = System.currentTimeMillis( );
+
+    String[] policy = getDirectoryPolicy( directory, root );
+
+    String  type     = policy.length > 0 ? policy[0] : "mmap";
+    boolean prefetch = policy.length > 1 && "prefetch".equals( policy[1] );
+
+    if ( prefetch ) prefetch( directory );
+
+    Directory dir;
+    if      ( "mmap".equals( type ) ) dir = new MMapDirectory( directory );
+    else if ( "nio" .equals( type ) ) dir = new NIOFSDirectory( directory );
+    else if ( "ram" .equals( type ) ) dir = copyToRAM( directory );
+    else throw new IOException( "Unknown directory type: " + type + " for index: " + directory );
+
+    IndexReader reader = IndexReader.open( dir, new KeepOnlyLastCommitDeletionPolicy(), true, indexDivisor );
+
+    LOG.info( "Opened index: " + directory + " (" + reader.maxDoc( ) + " documents, " + type + ( prefetch ? ", prefetched" : "" ) + ") in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+
+    return reader;
+  }
+
+  /**
+   * Returns the words of the nearest "_directory" file, looking in the
+   * given directory, then its parents up to <code>root</code>, or an
+   * empty array if there is none.
+   */
+  static String[] getDirectoryPolicy( File directory, File root )
+    throws IOException
+  {
+    File top = root == null ? null : root.getAbsoluteFile( );
+
+    for ( File dir = directory.getAbsoluteFile( ) ; dir != null ; dir = dir.getParentFile( ) )
+      {
+        File file = new File( dir, DIRECTORY_FILE );
+
+        if ( file.isFile( ) )
+          {
+            BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+            try
+              {
+                String line = in.readLine( );
+
+                return line == null || line.trim( ).length( ) == 0 ? new String[0] : line.trim( ).toLowerCase( ).split( "\\s+" );
+              }
+            finally
+              {
+                in.close( );
+              }
+          }
+
+        if ( top == null || dir.equals( top ) ) break;
+      }
+
+    return new String[0];
+  }
+
+  /**
+   * Read through all the files of the index, so that they are in the
+   * operating system's page cache before the searches need them.
+   */
+  static void prefetch( File directory )
+    throws IOException
+  {
+    long start = System.currentTimeMillis( );
+    long bytes = 0;
+
+    byte[] buf = new byte[1 << 20];
+    for ( File file : directory.listFiles( ) )
+      {
+        if ( ! file.isFile( ) ) continue ;
+
+        InputStream in = new FileInputStream( file );
+        try
+          {
+            for ( int n = in.read( buf ) ; n != -1 ; n = in.read( buf ) )
+              {
+                bytes += n;
+              }
+          }
+        finally
+          {
+            in.close( );
+          }
+      }
+
+    LOG.info( "Prefetched index: " + directory + " (" + bytes + " bytes) in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+  }
+
+  /**
+   * Copy the index onto the heap.
+   */
+  static Directory copyToRAM( File directory )
+    throws IOException
+  {
+    Directory fs = new NIOFSDirectory( directory );
+    try
+      {
+        return new RAMDirectory( fs );
+      }
+    finally
+      {
+        fs.close( );
+      }
+  }
+
+  /**
+   * The plain Lucene indexes at the leaves of a directory tree.
+   * submit() walks the tree the same way openIndexReaderInternal()
+   * does, and starts opening the leaves on the pool; get() then hands
+   * them out as the tree is put together, in the usual order.  With
+   * a single thread, get() just opens the index.
+   */
+  static class Leaves
+  {
+    final int             indexDivisor;
+    final File            root;
+    final ExecutorService executor;
+    int                   count;
+
+    final Map<File,Future<IndexReader>> readers = new HashMap<File,Future<IndexReader>>( );
+
+    Leaves( int indexDivisor, int numThreads, File root )
+    {
+      this.indexDivisor = indexDivisor;
+      this.root         = root;
+      this.executor     = numThreads > 1 ? Executors.newFixedThreadPool( numThreads ) : null;
+    }
+
+    void submit( File directory )
+    {
+      if ( this.executor == null ) return ;
+
+      File[] subDirs = listSubDirs( directory );
+
+      // Leave any errors to be reported by openIndexReaderInternal().
+      if ( subDirs == null ) return ;
+
+      if ( subDirs.length == 0 )
+        {
+          submitLeaf( directory );
+        }
+      else if ( isParallel( directory ) )
+        {
+          for ( File subDir : subDirs ) submitLeaf( subDir );
+        }
+      else
+        {
+          for ( File subDir : subDirs ) submit( subDir );
+        }
+    }
+
+    void submitLeaf( final File directory )
+    {
+      this.readers.put( directory, this.executor.submit( new Callable<IndexReader>( )
+        {
+          public IndexReader call( )
+            throws IOException
+          {
+            return openLeaf( directory, indexDivisor, root );
+          }
+        } ) );
+    }
+
+    IndexReader get( File directory )
+      throws IOException
+    {
+      this.count++;
+
+      Future<IndexReader> future = this.readers.remove( directory );
+
+      if ( future == null ) return openLeaf( directory, this.indexDivisor, this.root );
+
+      try
+        {
+          return future.get( );
+        }
+      catch ( InterruptedException ie )
+        {
+          throw new InterruptedIOException( "Interrupted opening index: " + directory );
+        }
+      catch ( ExecutionException ee )
+        {
+          Throwable cause = ee.getCause( );
+          if ( cause instanceof IOException      ) throw (IOException) cause;
+          if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+          throw new IOException( "Cannot open index: " + directory + ": " + cause );
+        }
+    }
+
+    /**
+     * Shut down the pool, closing any readers which were opened but
+     * never handed out, because opening another one failed.
+     */
+    void close( )
+    {
+      if ( this.executor == null ) return ;
+
+      this.executor.shutdown( );
+
+      for ( Future<IndexReader> future : this.readers.values( ) )
+        {
+          try
+            {
+              future.get( ).close( );
+            }
+          catch ( Exception e )
+            {
+              // Already failed, or being closed anyway.
+            }
+        }
+      this.readers.clear( );
+    }
+  }
+
+  /**
+   * Returns the distinct IndexReaders of the given Searchers, such as
+   * those returned by <code>open()</code>.  MultiSearchers are
+   * searched recursively for their IndexSearchers.
+   */
+  public static Collection<IndexReader> getReaders( Collection<? extends Searchable> searchers )
+  {
+    Set<IndexReader> readers = new LinkedHashSet<IndexReader>( );
+
+    for ( Searchable searcher : searchers )
+      {
+        if ( searcher instanceof MultiSearcher )
+          {
+            readers.addAll( getReaders( Arrays.asList( ((MultiSearcher) searcher).getSearchables( ) ) ) );
+          }
+        else if ( searcher instanceof IndexSearcher )
+          {
+            readers.add( ((IndexSearcher) searcher).getIndexReader( ) );
+          }
+      }
+
+    return readers;
+  }
+
 }
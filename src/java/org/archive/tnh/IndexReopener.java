@@ -0,0 +1,361 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiSearcher;
+import org.apache.lucene.search.Searchable;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * Re-opens the indexes of a Search whose commits have changed, such as
+ * after documents are added or deleted, or the norms are updated by
+ * LengthNormUpdater, then swaps in a new Snapshot of the searchers.
+ * Meant to be run periodically, e.g. from a
+ * ScheduledExecutorService.
+ *
+ * Each named IndexSearcher's reader is re-opened with reopen(), which
+ * returns the same reader if nothing changed, and otherwise shares
+ * the unchanged segments, and sub-readers of MultiReaders and
+ * ArchiveParallelReaders, with the old one.  Since the field caches
+ * are keyed by the segment readers, only the new segments have to be
+ * loaded.  The old readers are closed once the searches still using
+ * them are done, see Search.Snapshot.  If there is a Warmer, the new
+ * Snapshot is warmed up before it is swapped in.
+ *
+ * If the root directory holds collections, rather than being a single
+ * index, it is also checked for collection directories which have
+ * been added or removed.  New collections are opened, their field
+ * caches warmed, then added to the searchers by name and to the ""
+ * searcher for all of them.  Removed ones are dropped, and closed like
+ * the re-opened readers.  A new collection should be copied elsewhere
+ * on the same filesystem, then renamed into place, otherwise it may
+ * be opened half-copied; one which cannot be opened is tried again on
+ * the next run.
+ */
+public class IndexReopener implements Runnable
+{
+  public static final Logger LOG = Logger.getLogger( IndexReopener.class.getName() );
+
+  final Search           search;
+  final File             root;
+  final int              indexDivisor;
+  final FieldCacheMapped columns;
+  final int              numThreads;
+
+  Warmer warmer;
+
+  /**
+   * Re-open the indexes of the given Search, which were opened by
+   * IndexOpener from <code>indexPath</code>, registering their new
+   * column files with <code>columns</code>, if not <code>null</code>.
+   */
+  public IndexReopener( Search search, String indexPath, FieldCacheMapped columns )
+  {
+    this( search, indexPath, 1, columns, IndexOpener.DEFAULT_OPEN_THREADS );
+  }
+
+  /**
+   * As above, opening any new collections with the given
+   * <code>indexDivisor</code>, up to <code>numThreads</code> indexes at
+   * once.
+   */
+  public IndexReopener( Search search, String indexPath, int indexDivisor, FieldCacheMapped columns, int numThreads )
+  {
+    if ( search       == null ) throw new IllegalArgumentException( "search cannot be null" );
+    if ( indexPath    == null ) throw new IllegalArgumentException( "indexPath cannot be null" );
+    if ( indexDivisor < 1     ) throw new IllegalArgumentException( "indexDivisor must be >= 1" );
+
+    this.search       = search;
+    this.root         = new File( indexPath );
+    this.indexDivisor = indexDivisor;
+    this.columns      = columns;
+    this.numThreads   = numThreads;
+  }
+
+  public Warmer getWarmer( )
+  {
+    return this.warmer;
+  }
+
+  public void setWarmer( Warmer warmer )
+  {
+    this.warmer = warmer;
+  }
+
+  public void run( )
+  {
+    try
+      {
+        this.reopen( );
+      }
+    catch ( Throwable t )
+      {
+        LOG.warning( "Error re-opening indexes: " + t );
+      }
+  }
+
+  /**
+   * Re-open the indexes which have changed, open the collections
+   * which have been added and drop those which have been removed,
+   * then swap in the new searchers.  Returns the names of the indexes
+   * re-opened, added or removed.
+   */
+  public synchronized List<String> reopen( )
+    throws IOException
+  {
+    long start = System.currentTimeMillis( );
+
+    Map<String,Searcher> current = this.search.searchers;
+
+    Map<Searchable,Searchable> replaced = new IdentityHashMap<Searchable,Searchable>( );
+    List<IndexReader> newReaders = new ArrayList<IndexReader>( );
+    List<IndexReader> retired    = new ArrayList<IndexReader>( );
+    List<String>      changed    = new ArrayList<String>( );
+
+    // The root is a directory of collections if IndexOpener made a
+    // MultiSearcher of them.
+    boolean collections = current.get( "" ) instanceof MultiSearcher;
+
+    Map<String,Searcher> added   = new TreeMap<String,Searcher>( );
+    Set<String>          removed = new TreeSet<String>( );
+    if ( collections )
+      {
+        this.findCollections( current, added, removed );
+
+        for ( Searcher searcher : added.values( ) )
+          {
+            newReaders.addAll( IndexOpener.getReaders( Collections.singleton( searcher ) ) );
+          }
+        for ( String name : removed )
+          {
+            retired.addAll( IndexOpener.getReaders( Collections.singleton( current.get( name ) ) ) );
+          }
+      }
+
+    for ( Map.Entry<String,Searcher> entry : current.entrySet( ) )
+      {
+        if ( ! ( entry.getValue( ) instanceof IndexSearcher ) ) continue ;
+        if ( removed.contains( entry.getKey( ) )             ) continue ;
+
+        String        name     = entry.getKey( );
+        IndexSearcher searcher = (IndexSearcher) entry.getValue( );
+        IndexReader   reader   = searcher.getIndexReader( );
+
+        IndexReader newReader;
+        try
+          {
+            newReader = reader.reopen( );
+          }
+        catch ( IOException ioe )
+          {
+            LOG.warning( "Cannot re-open index: " + name + ": " + ioe );
+            continue ;
+          }
+
+        if ( newReader == reader ) continue ;
+
+        if ( this.columns != null )
+          {
+            File directory = name.length( ) == 0 ? this.root : new File( this.root, name );
+            try
+              {
+                this.columns.register( newReader, directory );
+              }
+            catch ( IOException ioe )
+              {
+                LOG.warning( "Cannot register column file for: " + directory + ": " + ioe );
+              }
+          }
+
+        IndexSearcher newSearcher = new IndexSearcher( newReader );
+        newSearcher.setSimilarity( searcher.getSimilarity( ) );
+
+        replaced.put( searcher, newSearcher );
+        newReaders.add( newReader );
+        retired.add( reader );
+        changed.add( name );
+      }
+
+    if ( changed.isEmpty( ) && added.isEmpty( ) && removed.isEmpty( ) ) return changed;
+
+    Map<String,Searcher> searchers = new HashMap<String,Searcher>( );
+    for ( Map.Entry<String,Searcher> entry : current.entrySet( ) )
+      {
+        if ( removed.contains( entry.getKey( ) ) ) continue ;
+
+        searchers.put( entry.getKey( ), replace( entry.getValue( ), replaced ) );
+      }
+
+    if ( collections && ( ! added.isEmpty( ) || ! removed.isEmpty( ) ) )
+      {
+        searchers.putAll( added );
+
+        // Keep the order of the collections in "" as it was, with the
+        // new ones at the end.
+        Set<Searchable> dropped = Collections.newSetFromMap( new IdentityHashMap<Searchable,Boolean>( ) );
+        for ( String name : removed ) dropped.add( current.get( name ) );
+
+        List<Searchable> all = new ArrayList<Searchable>( );
+        for ( Searchable sub : ((MultiSearcher) current.get( "" )).getSearchables( ) )
+          {
+            if ( ! dropped.contains( sub ) ) all.add( replaced.containsKey( sub ) ? replaced.get( sub ) : sub );
+          }
+        all.addAll( added.values( ) );
+
+        searchers.put( "", new MultiSearcher( all.toArray( new Searchable[all.size()] ) ) );
+      }
+
+    this.warm( newReaders );
+
+    Search.Snapshot snapshot = this.search.newSnapshot( Collections.unmodifiableMap( searchers ) );
+
+    if ( this.warmer != null ) this.warmer.warm( this.search, snapshot );
+
+    this.search.swap( snapshot, retired );
+
+    changed.addAll( added.keySet( ) );
+    changed.addAll( removed );
+
+    LOG.info( "Re-opened indexes: " + changed + " in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+
+    return changed;
+  }
+
+  /**
+   * Compare the collection directories under the root with the
+   * current searchers, opening the new collections into
+   * <code>added</code>, and putting the names of the missing ones in
+   * <code>removed</code>.
+   */
+  void findCollections( Map<String,Searcher> current, Map<String,Searcher> added, Set<String> removed )
+  {
+    File[] subDirs = this.root.listFiles( IndexOpener.DIR_FILTER );
+
+    // If the root itself is gone, leave things as they are.
+    if ( subDirs == null ) return ;
+
+    Set<String> names = new HashSet<String>( );
+    for ( File subDir : subDirs )
+      {
+        String name = subDir.getName( );
+
+        names.add( name );
+
+        if ( current.containsKey( name ) ) continue ;
+
+        try
+          {
+            IndexSearcher searcher = new IndexSearcher( IndexOpener.openIndexReader( subDir, this.indexDivisor, this.columns, this.numThreads, this.root ) );
+            searcher.setSimilarity( current.get( "" ).getSimilarity( ) );
+
+            added.put( name, searcher );
+          }
+        catch ( Exception e )
+          {
+            LOG.warning( "Cannot open new index: " + subDir + ": " + e );
+          }
+      }
+
+    for ( String name : current.keySet( ) )
+      {
+        if ( name.length( ) > 0 && ! names.contains( name ) ) removed.add( name );
+      }
+
+    // Never leave the "" searcher with nothing to search.
+    if ( added.isEmpty( ) && removed.size( ) == current.size( ) - 1 )
+      {
+        LOG.warning( "All indexes are missing under: " + this.root + ", keeping them" );
+
+        removed.clear( );
+      }
+  }
+
+  /**
+   * Load the site values of the new readers into the Search's site
+   * cache, so the first searches on them don't have to.  Readers
+   * shared with the old ones are already loaded, and are skipped by
+   * the caches.
+   */
+  void warm( Collection<IndexReader> readers )
+  {
+    FieldCache siteCache = this.search.getSiteCache( );
+
+    try
+      {
+        // A global dictionary is only built on load(), so build one
+        // for the new readers, rather than leave them to the
+        // fallback.
+        if ( siteCache instanceof FieldCacheGlobal )
+          {
+            ((FieldCacheGlobal) siteCache).load( readers );
+
+            return ;
+          }
+
+        // Otherwise, look up a value in each segment, as the
+        // IndexSearcher will search them.
+        for ( IndexReader reader : readers )
+          {
+            List<IndexReader> subReaders = new ArrayList<IndexReader>( );
+            ReaderUtil.gatherSubReaders( subReaders, reader );
+
+            for ( IndexReader subReader : subReaders )
+              {
+                if ( subReader.maxDoc( ) > 0 ) siteCache.getValue( subReader, 0, 0 );
+              }
+          }
+      }
+    catch ( IOException ioe )
+      {
+        LOG.warning( "Cannot warm site cache for re-opened indexes: " + ioe );
+      }
+  }
+
+  /**
+   * Returns the searcher with its replaced sub-searchers, if any,
+   * swapped for the new ones.
+   */
+  static Searcher replace( Searcher searcher, Map<Searchable,Searchable> replaced )
+    throws IOException
+  {
+    Searchable replacement = replaced.get( searcher );
+
+    if ( replacement != null ) return (Searcher) replacement;
+
+    if ( ! ( searcher instanceof MultiSearcher ) ) return searcher;
+
+    Searchable[] subs    = ((MultiSearcher) searcher).getSearchables( );
+    Searchable[] newSubs = new Searchable[subs.length];
+    boolean      changed = false;
+    for ( int i = 0 ; i < subs.length ; i++ )
+      {
+        newSubs[i] = subs[i] instanceof Searcher ? replace( (Searcher) subs[i], replaced ) : subs[i];
+
+        changed |= newSubs[i] != subs[i];
+      }
+
+    return changed ? new MultiSearcher( newSubs ) : searcher;
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.util.Arrays;
+
+/**
+ * Minimal open-addressing hash map from non-negative int keys to int
+ * values, without boxing.  Used by the collectors to map per-reader
+ * ordinals to per-query ones.
+ *
+ * Not thread-safe.
+ */
+public final class IntIntHashMap
+{
+  // Keys are stored +1 so that 0 can mark an empty slot.
+  int[] keys;
+  int[] values;
+  int   size;
+  int   mask;
+
+  public IntIntHashMap( )
+  {
+    this( 64 );
+  }
+
+  public IntIntHashMap( int expectedSize )
+  {
+    int capacity = 16;
+    while ( capacity < expectedSize * 2 ) capacity <<= 1;
+
+    this.keys   = new int[capacity];
+    this.values = new int[capacity];
+    this.mask   = capacity - 1;
+  }
+
+  /**
+   * Returns the value for the key, or <code>missing</code> if the key
+   * is not in the map.
+   */
+  public int get( int key, int missing )
+  {
+    final int k = key + 1;
+
+    for ( int i = hash( k ) & this.mask ; ; i = ( i + 1 ) & this.mask )
+      {
+        int existing = this.keys[i];
+
+        if ( existing == k ) return this.values[i];
+        if ( existing == 0 ) return missing;
+      }
+  }
+
+  public void put( int key, int value )
+  {
+    if ( key < 0 ) throw new IllegalArgumentException( "key must be >= 0" );
+
+    final int k = key + 1;
+
+    int i = hash( k ) & this.mask;
+    for ( ; this.keys[i] != 0 && this.keys[i] != k ; i = ( i + 1 ) & this.mask )
+      ;
+
+    if ( this.keys[i] == 0 )
+      {
+        this.keys[i] = k;
+
+        if ( ++this.size * 2 > this.keys.length )
+          {
+            this.values[i] = value;
+
+            rehash( );
+
+            return ;
+          }
+      }
+
+    this.values[i] = value;
+  }
+
+  public int size( )
+  {
+    return this.size;
+  }
+
+  public void clear( )
+  {
+    if ( this.size == 0 ) return ;
+
+    Arrays.fill( this.keys, 0 );
+    this.size = 0;
+  }
+
+  private void rehash( )
+  {
+    int[] oldKeys   = this.keys;
+    int[] oldValues = this.values;
+
+    this.keys   = new int[oldKeys.length * 2];
+    this.values = new int[oldKeys.length * 2];
+    this.mask   = this.keys.length - 1;
+
+    for ( int j = 0 ; j < oldKeys.length ; j++ )
+      {
+        int k = oldKeys[j];
+
+        if ( k == 0 ) continue ;
+
+        int i = hash( k ) & this.mask;
+        for ( ; this.keys[i] != 0 ; i = ( i + 1 ) & this.mask )
+          ;
+
+        this.keys  [i] = k;
+        this.values[i] = oldValues[j];
+      }
+  }
+
+  private static int hash( int k )
+  {
+    // Spread the bits, since ordinals and docIds are sequential.
+    k *= 0x9E3779B9;
+
+    return k ^ ( k >>> 16 );
+  }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ordinals read from a memory-mapped column file, so that they take
+ * up no space on the heap and are available as soon as the file is
+ * mapped.
+ *
+ * The column file is written by <code>write()</code> from the
+ * Ordinals of an entire index, and has the layout:
+ *
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    length of the index key
+ *   byte[] index key, UTF-8
+ *   int    number of sub-readers
+ *   int[]  maxDoc of each sub-reader
+ *   int    maxDoc
+ *   int    number of ordinals, including the reserved 0
+ *   int    bits per ordinal
+ *   long[] ordinals by docId, packed
+ *   long[] SiteSketch.hash() of each value
+ *   int[]  offset of each value, plus the end of the last
+ *   byte[] values, UTF-8
+ *
+ * The index key identifies the commit of the index the column was
+ * written from, see FieldCacheMapped.getIndexKey().  It and the
+ * maxDocs of the sub-readers are only there so that a column which no
+ * longer matches its index can be detected, and ignored.
+ *
+ * The ordinals of a single sub-reader are a view on the whole,
+ * starting at the sub-reader's docBase within the index.
+ */
+public class MappedOrdinals extends Ordinals
+{
+  public static final int MAGIC   = 0x544e4843;
+  public static final int VERSION = 2;
+
+  final ByteBuffer buffer;
+  final String     key;
+  final int[]      maxDocs;
+  final int        maxDoc;
+  final int        size;
+  final int        bits;
+  final long       mask;
+  final int        ordsStart;
+  final int        hashesStart;
+  final int        offsetsStart;
+  final int        valuesStart;
+  final int        docBase;
+
+  /**
+   * Map the given column file.
+   */
+  public MappedOrdinals( File file )
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    try
+      {
+        if ( raf.length( ) > Integer.MAX_VALUE ) throw new IOException( "Column file larger than 2GB: " + file );
+
+        this.buffer = raf.getChannel( ).map( FileChannel.MapMode.READ_ONLY, 0, raf.length( ) );
+      }
+    finally
+      {
+        raf.close( );
+      }
+
+    // A truncated or corrupt header can send the reads out of bounds.
+    try
+      {
+        int pos = 0;
+        if ( this.buffer.getInt( pos ) != MAGIC   ) throw new IOException( "Not a column file: " + file );
+        pos += 4;
+        if ( this.buffer.getInt( pos ) != VERSION ) throw new IOException( "Unsupported column file version: " + file );
+        pos += 4;
+
+        byte[] key = new byte[this.buffer.getInt( pos )];
+        pos += 4;
+        for ( int i = 0 ; i < key.length ; i++, pos++ )
+          {
+            key[i] = this.buffer.get( pos );
+          }
+        this.key = new String( key, "UTF-8" );
+
+        this.maxDocs = new int[this.buffer.getInt( pos )];
+        pos += 4;
+        for ( int i = 0 ; i < this.maxDocs.length ; i++, pos += 4 )
+          {
+            this.maxDocs[i] = this.buffer.getInt( pos );
+          }
+
+        this.maxDoc = this.buffer.getInt( pos ); pos += 4;
+        this.size   = this.buffer.getInt( pos ); pos += 4;
+        this.bits   = this.buffer.getInt( pos ); pos += 4;
+        this.mask   = this.bits == 64 ? -1L : ( 1L << this.bits ) - 1;
+
+        this.ordsStart    = pos;
+        this.hashesStart  = this.ordsStart   + 8 * numWords( this.maxDoc, this.bits );
+        this.offsetsStart = this.hashesStart + 8 * this.size;
+        this.valuesStart  = this.offsetsStart + 4 * ( this.size + 1 );
+        this.docBase      = 0;
+
+        if ( this.valuesStart + this.buffer.getInt( this.valuesStart - 4 ) != this.buffer.capacity( ) ) throw new IOException( "Truncated column file: " + file );
+      }
+    catch ( RuntimeException re )
+      {
+        throw new IOException( "Corrupt column file: " + file + ": " + re );
+      }
+  }
+
+  /**
+   * A view on the ordinals of <code>whole</code>, starting at
+   * <code>docBase</code>.
+   */
+  MappedOrdinals( MappedOrdinals whole, int docBase )
+  {
+    this.buffer       = whole.buffer;
+    this.key          = whole.key;
+    this.maxDocs      = whole.maxDocs;
+    this.maxDoc       = whole.maxDoc;
+    this.size         = whole.size;
+    this.bits         = whole.bits;
+    this.mask         = whole.mask;
+    this.ordsStart    = whole.ordsStart;
+    this.hashesStart  = whole.hashesStart;
+    this.offsetsStart = whole.offsetsStart;
+    this.valuesStart  = whole.valuesStart;
+    this.docBase      = whole.docBase + docBase;
+  }
+
+  public int getOrd( int docId )
+  {
+    long bitPos = (long) ( this.docBase + docId ) * this.bits;
+    int  word   = (int) ( bitPos >>> 6 );
+    int  shift  = (int) ( bitPos & 63 );
+
+    long value = this.buffer.getLong( this.ordsStart + 8 * word ) >>> shift;
+
+    if ( shift + this.bits > 64 )
+      {
+        value |= this.buffer.getLong( this.ordsStart + 8 * ( word + 1 ) ) << ( 64 - shift );
+      }
+
+    return (int) ( value & this.mask );
+  }
+
+  /**
+   * Decodes the value from the file, creating a new String each time.
+   */
+  public String getValue( int ord )
+  {
+    if ( ord == 0 ) return null;
+
+    int start = this.buffer.getInt( this.offsetsStart + 4 * ord );
+    int end   = this.buffer.getInt( this.offsetsStart + 4 * ( ord + 1 ) );
+
+    byte[] bytes = new byte[end - start];
+    for ( int i = 0 ; i < bytes.length ; i++ )
+      {
+        bytes[i] = this.buffer.get( this.valuesStart + start + i );
+      }
+
+    try
+      {
+        return new String( bytes, "UTF-8" );
+      }
+    catch ( UnsupportedEncodingException uee )
+      {
+        // Cannot happen, UTF-8 is always supported.
+        throw new RuntimeException( uee );
+      }
+  }
+
+  public long getHash( int ord )
+  {
+    return this.buffer.getLong( this.hashesStart + 8 * ord );
+  }
+
+  public int size( )
+  {
+    return this.size;
+  }
+
+  /**
+   * The sub-readers of an index share the dictionary of its column
+   * file.
+   */
+  public Object getOrdinalSpace( )
+  {
+    return this.buffer;
+  }
+
+  static int numWords( int maxDoc, int bits )
+  {
+    return (int) ( ( (long) maxDoc * bits + 63 ) >>> 6 );
+  }
+
+  /**
+   * Write the ordinals of an index, which has sub-readers with the
+   * given maxDocs, to a column file.  The values must be lower-cased,
+   * as they are by FieldCacheOrdinals.
+   */
+  public static void write( Ordinals ordinals, String key, int[] maxDocs, File file )
+    throws IOException
+  {
+    int maxDoc = 0;
+    for ( int m : maxDocs ) maxDoc += m;
+
+    int size = ordinals.size( );
+    int bits = Math.max( 1, 32 - Integer.numberOfLeadingZeros( size - 1 ) );
+
+    // Write to a temp file and rename it into place, so that a column
+    // file is never seen half-written.
+    File tmp = File.createTempFile( file.getName( ), ".tmp", file.getAbsoluteFile( ).getParentFile( ) );
+
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ) );
+    try
+      {
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        byte[] keyBytes = key.getBytes( "UTF-8" );
+        out.writeInt( keyBytes.length );
+        out.write( keyBytes );
+        out.writeInt( maxDocs.length );
+        for ( int m : maxDocs ) out.writeInt( m );
+        out.writeInt( maxDoc );
+        out.writeInt( size );
+        out.writeInt( bits );
+
+        long word   = 0;
+        int  filled = 0;
+        for ( int doc = 0 ; doc < maxDoc ; doc++ )
+          {
+            long ord = ordinals.getOrd( doc );
+
+            word |= ord << filled;
+            filled += bits;
+
+            if ( filled >= 64 )
+              {
+                out.writeLong( word );
+
+                filled -= 64;
+                word = filled == 0 ? 0 : ord >>> ( bits - filled );
+              }
+          }
+        if ( filled > 0 ) out.writeLong( word );
+
+        for ( int ord = 0 ; ord < size ; ord++ )
+          {
+            out.writeLong( ordinals.getHash( ord ) );
+          }
+
+        byte[][] values = new byte[size][];
+        int offset = 0;
+        for ( int ord = 0 ; ord < size ; ord++ )
+          {
+            String value = ordinals.getValue( ord );
+
+            values[ord] = value == null ? new byte[0] : value.getBytes( "UTF-8" );
+
+            out.writeInt( offset );
+            offset += values[ord].length;
+          }
+        out.writeInt( offset );
+
+        for ( byte[] value : values )
+          {
+            out.write( value );
+          }
+
+        out.close( );
+      }
+    catch ( IOException ioe )
+      {
+        try { out.close( ); } catch ( IOException e ) { }
+        tmp.delete( );
+
+        throw ioe;
+      }
+
+    if ( ! tmp.renameTo( file ) )
+      {
+        file.delete( );
+
+        if ( ! tmp.renameTo( file ) ) throw new IOException( "Cannot rename " + tmp + " to " + file );
+      }
+  }
+
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collapsing collector which collapses on an ordered list of keys,
+ * each with its own limit, such as at most 2 hits per site and, within
+ * each site, at most 1 hit per digest.
+ *
+ * The keys are nested: the group of a hit at level <code>i</code> is
+ * given by the values of keys 0 through <code>i</code>.  A limit of 0
+ * means no limit at that level.  The values are lower-cased, like the
+ * site, and documents with no value for a key are grouped together.
+ *
+ * Like the HeapCollapsingCollector, the hits are kept in an indexed
+ * min-heap, and the hits of each group are chained together.  When a
+ * candidate falls into one or more groups that are already full, it
+ * can only replace the lowest hit of the innermost full group, which
+ * is also in all the outer groups, so every limit still holds
+ * afterwards.  When the innermost and an outer group are full, an
+ * exhaustive top-N would sometimes evict the outer group's lowest hit
+ * as well and let an earlier discarded hit back in; this collector
+ * doesn't keep discarded hits, so it keeps that lower hit instead.
+ * With only one limited level, the results are exact.
+ *
+ * The value of the first key is returned as each Hit's site, and the
+ * values of all the keys as its keys.
+ */
+public class MultiCollapsingCollector extends AbstractCollapsingCollector
+{
+  /**
+   * A collected hit, along with its position in the heap, its group
+   * at each level and the next hit in the chain of each of them.
+   */
+  static final class Entry
+  {
+    int      id;
+    float    score;
+    String   site;
+    String[] keys;
+    int[]    groups;
+    Entry[]  next;
+    int      heapIndex;
+  }
+
+  final FieldCache[] keyCaches;
+  final int[]        limits;
+  final int          maxNumResults;
+
+  IndexReader  reader   = null;
+  int          docBase  = 0;
+  Scorer       scorer   = null;
+  Cursor       after    = null;
+  FacetCounter facets   = null;
+  SiteSketch   sketch   = null;
+  Ordinals     ordinals = null;
+  long[]       hashes   = null;
+
+  final Entry[] heap;
+  int size = 0;
+
+  // Group key -> group id, the group keys for all levels being
+  // distinct since they have different numbers of parts.
+  final Map<String,Integer> groupIds = new HashMap<String,Integer>( );
+
+  // Group id -> first hit in the group's chain.
+  Entry[] groupHeads = new Entry[64];
+
+  // Group id -> number of hits in the group on earlier pages.
+  int[]   groupSeen  = new int[64];
+
+  int numUncollapsedHits     = 0;
+  int numCandidatesPassScore = 0;
+  int numCandidatesFailScore = 0;
+  int numCandidatesPassSite  = 0;
+  int numCandidatesFailSite  = 0;
+
+  public MultiCollapsingCollector( final FieldCache[] keyCaches, final int[] limits, final int maxNumResults )
+  {
+    if ( keyCaches.length == 0              ) throw new IllegalArgumentException( "At least one key is required" );
+    if ( keyCaches.length != limits.length  ) throw new IllegalArgumentException( "There must be one limit per key" );
+
+    this.keyCaches     = keyCaches;
+    this.limits        = limits;
+    this.maxNumResults = maxNumResults;
+
+    this.heap = new Entry[maxNumResults];
+  }
+
+  public void setCursor( Cursor after )
+  {
+    this.after = after;
+  }
+
+  public void setFacets( FacetCounter facets )
+  {
+    this.facets = facets;
+  }
+
+  /**
+   * Only supported if the site is the first key, from an
+   * OrdinalFieldCache or a FieldCacheLucene, whose pre-computed hashes
+   * are cheap enough to look up for every raw hit.
+   */
+  public void setSketch( SiteSketch sketch )
+  {
+    if ( ! ( this.keyCaches[0] instanceof OrdinalFieldCache || this.keyCaches[0] instanceof FieldCacheLucene ) ) super.setSketch( sketch );
+
+    this.sketch = sketch;
+  }
+
+  public boolean acceptsDocsOutOfOrder( )
+  {
+    return true;
+  }
+
+  public void setNextReader( IndexReader reader, int docBase )
+    throws IOException
+  {
+    this.reader  = reader;
+    this.docBase = docBase;
+
+    if ( this.sketch != null )
+      {
+        if ( this.keyCaches[0] instanceof OrdinalFieldCache ) this.ordinals = ((OrdinalFieldCache) this.keyCaches[0]).getOrdinals( reader, docBase );
+        else                                          this.hashes   = ((FieldCacheLucene)  this.keyCaches[0]).getHashes( reader );
+      }
+
+    if ( this.facets != null ) this.facets.setNextReader( reader );
+  }
+
+  public void setScorer( Scorer scorer )
+  {
+    this.scorer = scorer;
+  }
+
+  public void collect( int docId )
+    throws IOException
+  {
+    this.numUncollapsedHits++;
+
+    if ( this.facets != null ) this.facets.collect( docId );
+    if ( this.sketch != null ) this.sketch.add( this.hashes != null ? this.hashes[docId] : this.ordinals.getHash( this.ordinals.getOrd( docId ) ), this.docBase + docId );
+
+    final int   id    = this.docBase + docId;
+    final float score = this.scorer.score( );
+
+    if ( this.size == this.maxNumResults && ! lessThan( this.heap[0], score, id ) )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    // Skip hits which were already shown on earlier pages.
+    if ( this.after != null && ! this.after.isAfter( score, id ) )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    final int levels = this.keyCaches.length;
+
+    String   site = null;
+    String[] keys = new String[levels];
+    for ( int i = 0 ; i < levels ; i++ )
+      {
+        String value = this.keyCaches[i].getValue( this.reader, this.docBase, docId );
+
+        if ( i == 0 ) site = value == null ? "" : value;
+
+        keys[i] = value == null ? "" : value.toLowerCase( );
+      }
+
+    int[] groups = groupIds( keys );
+
+    // Find the innermost group which is already full; the candidate
+    // can only get in by replacing that group's lowest hit.
+    Entry victim = null;
+    for ( int i = levels - 1 ; i >= 0 ; i-- )
+      {
+        if ( this.limits[i] == 0 ) continue ;
+
+        int   count  = this.groupSeen[groups[i]];
+        Entry lowest = null;
+        for ( Entry e = this.groupHeads[groups[i]] ; e != null ; e = e.next[i] )
+          {
+            count++;
+
+            if ( lowest == null || lessThan( e, lowest ) ) lowest = e;
+          }
+
+        if ( count < this.limits[i] ) continue ;
+
+        // The group's hits were all used up on earlier pages.
+        if ( lowest == null )
+          {
+            this.numCandidatesFailSite++;
+
+            return ;
+          }
+
+        victim = lowest;
+
+        break ;
+      }
+
+    if ( victim == null )
+      {
+        this.numCandidatesPassScore++;
+
+        Entry e;
+        if ( this.size < this.maxNumResults )
+          {
+            e = new Entry( );
+            e.next      = new Entry[levels];
+            e.heapIndex = this.size;
+            this.heap[this.size++] = e;
+          }
+        else
+          {
+            e = this.heap[0];
+
+            unlink( e );
+          }
+
+        set( e, id, score, site, keys, groups );
+
+        siftUp  ( e.heapIndex );
+        siftDown( e.heapIndex );
+      }
+    else if ( lessThan( victim, score, id ) )
+      {
+        this.numCandidatesPassSite++;
+
+        unlink( victim );
+
+        set( victim, id, score, site, keys, groups );
+
+        // The candidate ranks higher than the hit it replaced.
+        siftDown( victim.heapIndex );
+      }
+    else
+      {
+        this.numCandidatesFailSite++;
+      }
+  }
+
+  /**
+   * Fill in the Entry and link it into the chain of each of its
+   * groups.
+   */
+  private void set( Entry e, int id, float score, String site, String[] keys, int[] groups )
+  {
+    e.id     = id;
+    e.score  = score;
+    e.site   = site;
+    e.keys   = keys;
+    e.groups = groups;
+
+    for ( int i = 0 ; i < groups.length ; i++ )
+      {
+        e.next[i] = this.groupHeads[groups[i]];
+        this.groupHeads[groups[i]] = e;
+      }
+  }
+
+  /**
+   * Removes the given Entry from the chain of each of its groups.
+   */
+  private void unlink( Entry e )
+  {
+    for ( int i = 0 ; i < e.groups.length ; i++ )
+      {
+        int g = e.groups[i];
+
+        if ( this.groupHeads[g] == e )
+          {
+            this.groupHeads[g] = e.next[i];
+          }
+        else
+          {
+            Entry prev = this.groupHeads[g];
+            for ( ; prev.next[i] != e ; prev = prev.next[i] )
+              ;
+
+            prev.next[i] = e.next[i];
+          }
+
+        e.next[i] = null;
+      }
+  }
+
+  /**
+   * Returns the ids of the groups for the given key values, assigning
+   * new ids to groups not seen before.
+   */
+  private int[] groupIds( String[] keys )
+  {
+    String[] groupKeys = groupKeys( keys );
+
+    int[] groups = new int[groupKeys.length];
+    for ( int i = 0 ; i < groupKeys.length ; i++ )
+      {
+        Integer existing = this.groupIds.get( groupKeys[i] );
+
+        if ( existing != null )
+          {
+            groups[i] = existing;
+
+            continue ;
+          }
+
+        int g = this.groupIds.size( );
+        this.groupIds.put( groupKeys[i], g );
+
+        if ( g == this.groupHeads.length )
+          {
+            this.groupHeads = Arrays.copyOf( this.groupHeads, g * 2 );
+            this.groupSeen  = Arrays.copyOf( this.groupSeen,  g * 2 );
+          }
+
+        this.groupSeen[g] = this.after == null ? 0 : this.after.getCount( groupKeys[i] );
+
+        groups[i] = g;
+      }
+
+    return groups;
+  }
+
+  /**
+   * Returns the key of the group at each level for the given
+   * (lower-cased) key values.  The key at level 0 is just the value,
+   * so for the site it is the same key the other collectors use.
+   */
+  public static String[] groupKeys( String[] keys )
+  {
+    String[] groupKeys = new String[keys.length];
+
+    groupKeys[0] = keys[0];
+    for ( int i = 1 ; i < keys.length ; i++ )
+      {
+        groupKeys[i] = groupKeys[i-1] + '\u0000' + keys[i];
+      }
+
+    return groupKeys;
+  }
+
+  /**
+   * Returns the group keys of the given Hit, which for Hits not
+   * collected by a MultiCollapsingCollector is just the lower-cased
+   * site.
+   */
+  public static String[] groupKeys( Hit hit )
+  {
+    if ( hit.keys != null ) return groupKeys( hit.keys );
+
+    return new String[] { hit.site == null ? "" : hit.site.toLowerCase( ) };
+  }
+
+  /**
+   * Same ordering as the CollapsingCollector.SCORE_COMPARATOR, lower
+   * scores first, and for equal scores, higher ids first.
+   */
+  private static boolean lessThan( Entry e1, Entry e2 )
+  {
+    if ( e1.score != e2.score ) return e1.score < e2.score;
+
+    return e1.id > e2.id;
+  }
+
+  /**
+   * Returns true if the Entry is ranked lower than a candidate with
+   * the given score and id.
+   */
+  private static boolean lessThan( Entry e, float score, int id )
+  {
+    if ( e.score != score ) return e.score < score;
+
+    return e.id > id;
+  }
+
+  private void siftUp( int i )
+  {
+    final Entry e = this.heap[i];
+
+    while ( i > 0 )
+      {
+        int parent = ( i - 1 ) >>> 1;
+
+        if ( ! lessThan( e, this.heap[parent] ) ) break;
+
+        this.heap[i] = this.heap[parent];
+        this.heap[i].heapIndex = i;
+
+        i = parent;
+      }
+
+    this.heap[i] = e;
+    e.heapIndex  = i;
+  }
+
+  private void siftDown( int i )
+  {
+    final Entry e = this.heap[i];
+
+    while ( true )
+      {
+        int child = ( i << 1 ) + 1;
+
+        if ( child >= this.size ) break;
+
+        if ( child + 1 < this.size && lessThan( this.heap[child+1], this.heap[child] ) ) child++;
+
+        if ( ! lessThan( this.heap[child], e ) ) break;
+
+        this.heap[i] = this.heap[child];
+        this.heap[i].heapIndex = i;
+
+        i = child;
+      }
+
+    this.heap[i] = e;
+    e.heapIndex  = i;
+  }
+
+  /**
+   * Return array of Hits, highest-scoring first.  If there were no
+   * hits, the array is of size 0.
+   */
+  public Hit[] getHits()
+  {
+    Hit[] hits = new Hit[this.size];
+
+    for ( int i = 0; i < this.size ; i++ )
+      {
+        Entry e = this.heap[i];
+
+        hits[i] = new Hit( e.id, e.score, e.site );
+        hits[i].keys = e.keys;
+      }
+
+    Arrays.sort( hits, Collections.reverseOrder( CollapsingCollector.SCORE_COMPARATOR ) );
+
+    return hits;
+  }
+
+  public int getNumHits( )
+  {
+    return this.size;
+  }
+
+  public int getNumUncollapsedHits( )
+  {
+    return this.numUncollapsedHits;
+  }
+
+  public int getNumCandidatesPassScore( )
+  {
+    return this.numCandidatesPassScore;
+  }
+
+  public int getNumCandidatesFailScore( )
+  {
+    return this.numCandidatesFailScore;
+  }
+
+  public int getNumCandidatesPassSite( )
+  {
+    return this.numCandidatesPassSite;
+  }
+
+  public int getNumCandidatesFailSite( )
+  {
+    return this.numCandidatesFailSite;
+  }
+
+}
@@ -90,6 +90,28 @@ public class OpenSearchHelper
     return channel;
   }
 
+  /**
+   * Helper function to add the facet counts to the given JDOM
+   * Element, at most <code>max</code> values per facet, highest count
+   * first.
+   */
+  public static void addFacets( Element channel, Map<String,Map<String,Integer>> facets, int max )
+  {
+    for ( Map.Entry<String,Map<String,Integer>> field : facets.entrySet( ) )
+      {
+        Element facet = new Element( "facet", Namespace.getNamespace( NS_ARCHIVE ) );
+        facet.setAttribute( "name", field.getKey( ) );
+
+        channel.addContent( facet );
+
+        for ( Map.Entry<String,Integer> value : FacetCounter.top( field.getValue( ), max ) )
+          {
+            Element v = JDOMHelper.add( facet, NS_ARCHIVE, "value", value.getKey( ) );
+            v.setAttribute( "count", Integer.toString( value.getValue( ) ) );
+          }
+      }
+  }
+
   /**
    * Helper function to add the response time to the given JDOM Element.
    */
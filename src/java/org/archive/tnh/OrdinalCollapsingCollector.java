@@ -0,0 +1,533 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collapsing collector which compares sites by integer ordinal
+ * rather than by String.
+ *
+ * The per-reader Ordinals come from an OrdinalFieldCache.  Since
+ * those ordinals are usually only meaningful within a single reader,
+ * each one is mapped to a per-query "local" ordinal the first time it
+ * is seen in a competitive hit, and the mapping is remembered for the
+ * rest of that reader, or for as long as the readers share the same
+ * ordinals, as with FieldCacheGlobal.  Only that first sighting
+ * involves the site String; all the collapsing itself is done on
+ * ints, and the site Strings are only looked up again in getHits().
+ *
+ * The hits are kept in parallel primitive arrays, indexed by "slot",
+ * rather than in Hit objects.  The heap is an array of slots ordered
+ * by score, and the hits for each site are chained together through
+ * the nextInSite array.  Hit objects are only created by getHits().
+ *
+ * Since all the state is in arrays which can be cleared and re-used,
+ * a collector can be recycled for the next query.  Use acquire() to
+ * get the calling thread's collector rather than allocating a new
+ * one for each query.
+ */
+public class OrdinalCollapsingCollector extends AbstractCollapsingCollector
+{
+  /**
+   * Collectors with a larger capacity than this are not kept in the
+   * per-thread pool, so that the occasional deep page doesn't pin a
+   * lot of memory to every request thread.
+   */
+  public static final int POOL_MAX_CAPACITY = 4096;
+
+  private static final ThreadLocal<OrdinalCollapsingCollector> POOL = new ThreadLocal<OrdinalCollapsingCollector>( );
+
+  OrdinalFieldCache siteCache;
+  int               maxNumResults;
+  int               hitsPerSite;
+
+  Ordinals     ordinals = null;
+  int          docBase  = 0;
+  Scorer       scorer   = null;
+  Cursor       after    = null;
+  FacetCounter facets   = null;
+  SiteSketch   sketch   = null;
+
+  // The hits, indexed by slot.
+  int[]   docIds;
+  float[] scores;
+  int[]   siteOrds;
+  int[]   nextInSite;
+  int[]   heapIndex;
+
+  // Min-heap of slots, lowest-scoring at the root.
+  int[]   heap;
+  int     size = 0;
+
+  // Per-reader ordinal -> local ordinal.
+  final IntIntHashMap readerToLocal = new IntIntHashMap( );
+
+  // Local ordinal -> site, and site -> local ordinal.
+  final List<String>         localSites = new ArrayList<String>( );
+  final Map<String,Integer>  localOrds  = new HashMap<String,Integer>( );
+
+  // Local ordinal -> first slot in the chain of hits for that site.
+  int[] siteHeads = new int[64];
+
+  // Local ordinal -> number of hits for that site on earlier pages.
+  int[] siteSeen  = new int[64];
+
+  int numUncollapsedHits     = 0;
+  int numCandidatesPassScore = 0;
+  int numCandidatesFailScore = 0;
+  int numCandidatesPassSite  = 0;
+  int numCandidatesFailSite  = 0;
+
+  public OrdinalCollapsingCollector( final OrdinalFieldCache siteCache, final int maxNumResults )
+  {
+    this( siteCache, maxNumResults, 1 );
+  }
+
+  public OrdinalCollapsingCollector( final OrdinalFieldCache siteCache, final int maxNumResults, final int hitsPerSite )
+  {
+    this.allocate( maxNumResults );
+    this.reset( siteCache, maxNumResults, hitsPerSite );
+  }
+
+  /**
+   * Returns the calling thread's collector, reset for a new query.
+   * The collector must not be used after the thread's next call to
+   * acquire().
+   */
+  public static OrdinalCollapsingCollector acquire( final OrdinalFieldCache siteCache, final int maxNumResults, final int hitsPerSite )
+  {
+    if ( maxNumResults > POOL_MAX_CAPACITY )
+      {
+        return new OrdinalCollapsingCollector( siteCache, maxNumResults, hitsPerSite );
+      }
+
+    OrdinalCollapsingCollector collector = POOL.get( );
+
+    if ( collector == null )
+      {
+        collector = new OrdinalCollapsingCollector( siteCache, maxNumResults, hitsPerSite );
+
+        POOL.set( collector );
+
+        return collector;
+      }
+
+    collector.reset( siteCache, maxNumResults, hitsPerSite );
+
+    return collector;
+  }
+
+  /**
+   * Clear out all the state from the previous query, growing the
+   * arrays if need be.
+   */
+  public void reset( final OrdinalFieldCache siteCache, final int maxNumResults, final int hitsPerSite )
+  {
+    if ( maxNumResults > this.heap.length ) this.allocate( maxNumResults );
+
+    this.siteCache      = siteCache;
+    this.maxNumResults  = maxNumResults;
+    this.hitsPerSite    = hitsPerSite;
+
+    this.ordinals = null;
+    this.docBase  = 0;
+    this.scorer   = null;
+    this.after    = null;
+    this.facets   = null;
+    this.sketch   = null;
+    this.size     = 0;
+
+    this.readerToLocal.clear( );
+    this.localOrds.clear( );
+    this.localSites.clear( );
+    Arrays.fill( this.siteHeads, -1 );
+    Arrays.fill( this.siteSeen,   0 );
+
+    this.numUncollapsedHits     = 0;
+    this.numCandidatesPassScore = 0;
+    this.numCandidatesFailScore = 0;
+    this.numCandidatesPassSite  = 0;
+    this.numCandidatesFailSite  = 0;
+  }
+
+  private void allocate( int capacity )
+  {
+    this.docIds     = new int  [capacity];
+    this.scores     = new float[capacity];
+    this.siteOrds   = new int  [capacity];
+    this.nextInSite = new int  [capacity];
+    this.heapIndex  = new int  [capacity];
+    this.heap       = new int  [capacity];
+  }
+
+  public void setCursor( Cursor after )
+  {
+    this.after = after;
+
+    for ( Map.Entry<String,Integer> e : after.sites.entrySet( ) )
+      {
+        this.siteSeen[localOrd( e.getKey( ) )] = e.getValue( );
+      }
+  }
+
+  public void setFacets( FacetCounter facets )
+  {
+    this.facets = facets;
+  }
+
+  public void setSketch( SiteSketch sketch )
+  {
+    this.sketch = sketch;
+  }
+
+  public boolean acceptsDocsOutOfOrder( )
+  {
+    return true;
+  }
+
+  public void setNextReader( IndexReader reader, int docBase )
+    throws IOException
+  {
+    Ordinals ordinals = this.siteCache.getOrdinals( reader, docBase );
+
+    // If the ordinals are shared with the previous reader, then so is
+    // the mapping to local ordinals.
+    if ( this.ordinals == null || ordinals.getOrdinalSpace( ) == null || ordinals.getOrdinalSpace( ) != this.ordinals.getOrdinalSpace( ) )
+      {
+        this.readerToLocal.clear( );
+      }
+
+    this.ordinals = ordinals;
+    this.docBase  = docBase;
+
+    if ( this.facets != null ) this.facets.setNextReader( reader );
+  }
+
+  public void setScorer( Scorer scorer )
+  {
+    this.scorer = scorer;
+  }
+
+  public void collect( int docId )
+    throws IOException
+  {
+    this.numUncollapsedHits++;
+
+    if ( this.facets != null ) this.facets.collect( docId );
+    if ( this.sketch != null ) this.sketch.add( this.ordinals.getHash( this.ordinals.getOrd( docId ) ), this.docBase + docId );
+
+    final int   id    = this.docBase + docId;
+    final float score = this.scorer.score( );
+
+    // Compare against the lowest hit on docId as well as score, so that
+    // ties are broken the same way no matter what order the docs are
+    // collected in, and a Cursor never skips over a tied hit.
+    if ( this.size == this.maxNumResults && ! lessThan( this.heap[0], score, id ) )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    // Skip hits which were already shown on earlier pages.
+    if ( this.after != null && ! this.after.isAfter( score, id ) )
+      {
+        this.numCandidatesFailScore++;
+
+        return ;
+      }
+
+    final int site = localOrd( this.ordinals.getOrd( docId ) );
+
+    if ( this.hitsPerSite == 0 )
+      {
+        this.numCandidatesPassScore++;
+
+        insert( id, score, site );
+
+        return ;
+      }
+
+    int count  = this.siteSeen[site];
+    int lowest = -1;
+    for ( int slot = this.siteHeads[site]; slot >= 0 ; slot = this.nextInSite[slot] )
+      {
+        count++;
+
+        if ( lowest < 0 || lessThan( slot, lowest ) ) lowest = slot;
+      }
+
+    if ( count < this.hitsPerSite )
+      {
+        this.numCandidatesPassScore++;
+
+        insert( id, score, site );
+
+        return ;
+      }
+
+    // The site's hits were all used up on earlier pages.
+    if ( lowest < 0 )
+      {
+        this.numCandidatesFailSite++;
+
+        return ;
+      }
+
+    if ( score == this.scores[lowest] && id < this.docIds[lowest] )
+      {
+        this.numCandidatesPassSite++;
+
+        this.docIds[lowest] = id;
+
+        siftDown( this.heapIndex[lowest] );
+      }
+    else if ( score > this.scores[lowest] )
+      {
+        this.numCandidatesPassSite++;
+
+        this.docIds[lowest] = id;
+        this.scores[lowest] = score;
+
+        siftDown( this.heapIndex[lowest] );
+      }
+    else
+      {
+        this.numCandidatesFailSite++;
+      }
+  }
+
+  /**
+   * Map the current reader's ordinal to the local ordinal, assigning
+   * a new local ordinal if this is the first time we've seen the
+   * site in this query.
+   */
+  private int localOrd( int ord )
+  {
+    int local = this.readerToLocal.get( ord, -1 );
+
+    if ( local >= 0 ) return local;
+
+    String site = this.ordinals.getValue( ord );
+
+    // Use "" rather than null for documents with no site.
+    local = localOrd( site == null ? "" : site );
+
+    this.readerToLocal.put( ord, local );
+
+    return local;
+  }
+
+  private int localOrd( String site )
+  {
+    Integer existing = this.localOrds.get( site );
+
+    if ( existing != null ) return existing;
+
+    int local = this.localSites.size( );
+    this.localSites.add( site );
+    this.localOrds.put( site, local );
+
+    if ( local == this.siteHeads.length )
+      {
+        this.siteHeads = Arrays.copyOf( this.siteHeads, local * 2 );
+        this.siteSeen  = Arrays.copyOf( this.siteSeen,  local * 2 );
+        Arrays.fill( this.siteHeads, local, this.siteHeads.length, -1 );
+      }
+
+    return local;
+  }
+
+  /**
+   * Adds a hit.  If the heap is full, the lowest-scoring hit at the
+   * root is evicted and its slot re-used.
+   */
+  private void insert( int id, float score, int site )
+  {
+    int slot;
+    if ( this.size < this.maxNumResults )
+      {
+        slot = this.size;
+        this.heap[slot]      = slot;
+        this.heapIndex[slot] = slot;
+        this.size++;
+      }
+    else
+      {
+        slot = this.heap[0];
+
+        unlink( slot );
+      }
+
+    this.docIds  [slot] = id;
+    this.scores  [slot] = score;
+    this.siteOrds[slot] = site;
+
+    if ( this.hitsPerSite != 0 )
+      {
+        this.nextInSite[slot] = this.siteHeads[site];
+        this.siteHeads [site] = slot;
+      }
+
+    siftUp  ( this.heapIndex[slot] );
+    siftDown( this.heapIndex[slot] );
+  }
+
+  private void unlink( int slot )
+  {
+    if ( this.hitsPerSite == 0 ) return ;
+
+    final int site = this.siteOrds[slot];
+
+    if ( this.siteHeads[site] == slot )
+      {
+        this.siteHeads[site] = this.nextInSite[slot];
+      }
+    else
+      {
+        int prev = this.siteHeads[site];
+        for ( ; this.nextInSite[prev] != slot ; prev = this.nextInSite[prev] )
+          ;
+
+        this.nextInSite[prev] = this.nextInSite[slot];
+      }
+
+    this.nextInSite[slot] = -1;
+  }
+
+  /**
+   * Same ordering as the CollapsingCollector.SCORE_COMPARATOR, lower
+   * scores first, and for equal scores, higher ids first.
+   */
+  private boolean lessThan( int slot1, int slot2 )
+  {
+    final float s1 = this.scores[slot1], s2 = this.scores[slot2];
+
+    if ( s1 != s2 ) return s1 < s2;
+
+    return this.docIds[slot1] > this.docIds[slot2];
+  }
+
+  /**
+   * Returns true if the hit in the slot is ranked lower than a
+   * candidate with the given score and id.
+   */
+  private boolean lessThan( int slot, float score, int id )
+  {
+    if ( this.scores[slot] != score ) return this.scores[slot] < score;
+
+    return this.docIds[slot] > id;
+  }
+
+  private void siftUp( int i )
+  {
+    final int slot = this.heap[i];
+
+    while ( i > 0 )
+      {
+        int parent = ( i - 1 ) >>> 1;
+
+        if ( ! lessThan( slot, this.heap[parent] ) ) break;
+
+        this.heap[i] = this.heap[parent];
+        this.heapIndex[this.heap[i]] = i;
+
+        i = parent;
+      }
+
+    this.heap[i]          = slot;
+    this.heapIndex[slot]  = i;
+  }
+
+  private void siftDown( int i )
+  {
+    final int slot = this.heap[i];
+
+    while ( true )
+      {
+        int child = ( i << 1 ) + 1;
+
+        if ( child >= this.size ) break;
+
+        if ( child + 1 < this.size && lessThan( this.heap[child+1], this.heap[child] ) ) child++;
+
+        if ( ! lessThan( this.heap[child], slot ) ) break;
+
+        this.heap[i] = this.heap[child];
+        this.heapIndex[this.heap[i]] = i;
+
+        i = child;
+      }
+
+    this.heap[i]          = slot;
+    this.heapIndex[slot]  = i;
+  }
+
+  /**
+   * Return array of Hits, highest-scoring first.  This is the only
+   * place Hit objects are created and the site Strings are needed.
+   */
+  public Hit[] getHits()
+  {
+    Hit[] hits = new Hit[this.size];
+
+    for ( int slot = 0; slot < this.size ; slot++ )
+      {
+        hits[slot] = new Hit( this.docIds[slot], this.scores[slot], this.localSites.get( this.siteOrds[slot] ) );
+      }
+
+    Arrays.sort( hits, Collections.reverseOrder( CollapsingCollector.SCORE_COMPARATOR ) );
+
+    return hits;
+  }
+
+  public int getNumHits( )
+  {
+    return this.size;
+  }
+
+  public int getNumUncollapsedHits( )
+  {
+    return this.numUncollapsedHits;
+  }
+
+  public int getNumCandidatesPassScore( )
+  {
+    return this.numCandidatesPassScore;
+  }
+
+  public int getNumCandidatesFailScore( )
+  {
+    return this.numCandidatesFailScore;
+  }
+
+  public int getNumCandidatesPassSite( )
+  {
+    return this.numCandidatesPassSite;
+  }
+
+  public int getNumCandidatesFailSite( )
+  {
+    return this.numCandidatesFailSite;
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * Compact, immutable, sorted dictionary of String values, numbered
+ * from 1, with 0 reserved for "no value".
+ *
+ * Rather than one String object per value, the values are stored as
+ * UTF-8 in large byte[] blocks, each preceded by its length, with an
+ * int[] of offsets into the blocks.  For short values such as host
+ * names that is about a quarter of the heap of the equivalent
+ * String[].
+ */
+public class OrdinalDictionary
+{
+  static final int BLOCK_BITS = 16;
+  static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+  final byte[][] blocks;
+  final int[]    offsets;
+  final long[]   hashes;
+
+  /**
+   * Build the dictionary from the given values, which must be sorted
+   * and distinct, and must not include <code>null</code>.
+   */
+  public OrdinalDictionary( List<String> values )
+  {
+    this.offsets = new int [values.size( ) + 1];
+    this.hashes  = new long[values.size( ) + 1];
+
+    this.hashes[0] = SiteSketch.hash( null );
+
+    List<byte[]> blocks = new ArrayList<byte[]>( );
+    byte[] block = null;
+    int    pos   = BLOCK_SIZE;
+    for ( int i = 0 ; i < values.size( ) ; i++ )
+      {
+        String value = values.get( i );
+        byte[] bytes = utf8( value );
+
+        if ( bytes.length + 2 > BLOCK_SIZE ) throw new IllegalArgumentException( "Value too long: " + value );
+
+        if ( pos + bytes.length + 2 > BLOCK_SIZE )
+          {
+            block = new byte[BLOCK_SIZE];
+            blocks.add( block );
+            pos = 0;
+          }
+
+        this.offsets[i+1] = ( ( blocks.size( ) - 1 ) << BLOCK_BITS ) | pos;
+        this.hashes [i+1] = SiteSketch.hash( value );
+
+        block[pos++] = (byte) ( bytes.length >>> 8 );
+        block[pos++] = (byte) ( bytes.length );
+        System.arraycopy( bytes, 0, block, pos, bytes.length );
+        pos += bytes.length;
+      }
+
+    // Trim the last block down to size.
+    if ( block != null ) blocks.set( blocks.size( ) - 1, Arrays.copyOf( block, pos ) );
+
+    this.blocks = blocks.toArray( new byte[blocks.size( )][] );
+  }
+
+  /**
+   * Returns the value for the given ordinal, creating a new String
+   * each time.
+   */
+  public String getValue( int ord )
+  {
+    if ( ord == 0 ) return null;
+
+    byte[] block  = this.blocks[this.offsets[ord] >>> BLOCK_BITS];
+    int    pos    = this.offsets[ord] & ( BLOCK_SIZE - 1 );
+    int    length = ( ( block[pos] & 0xff ) << 8 ) | ( block[pos+1] & 0xff );
+
+    try
+      {
+        return new String( block, pos + 2, length, "UTF-8" );
+      }
+    catch ( UnsupportedEncodingException uee )
+      {
+        // Cannot happen, UTF-8 is always supported.
+        throw new RuntimeException( uee );
+      }
+  }
+
+  public long getHash( int ord )
+  {
+    return this.hashes[ord];
+  }
+
+  /**
+   * Returns the number of ordinals, including the reserved 0.
+   */
+  public int size( )
+  {
+    return this.offsets.length;
+  }
+
+  /**
+   * Returns the number of bytes of heap used, roughly.
+   */
+  public long sizeInBytes( )
+  {
+    long bytes = 4L * this.offsets.length + 8L * this.hashes.length;
+    for ( byte[] block : this.blocks )
+      {
+        bytes += block.length;
+      }
+
+    return bytes;
+  }
+
+  static byte[] utf8( String value )
+  {
+    try
+      {
+        return value.getBytes( "UTF-8" );
+      }
+    catch ( UnsupportedEncodingException uee )
+      {
+        // Cannot happen, UTF-8 is always supported.
+        throw new RuntimeException( uee );
+      }
+  }
+
+}
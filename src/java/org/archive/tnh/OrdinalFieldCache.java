@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * A FieldCache which can also provide the values as per-reader
+ * integer Ordinals.  The OrdinalCollapsingCollector uses these to
+ * collapse on ints rather than Strings.
+ */
+public interface OrdinalFieldCache extends FieldCache
+{
+
+  /**
+   * Returns the Ordinals for the documents in the given reader, which
+   * begins at <code>docBase</code> in the Searcher.
+   */
+  public Ordinals getOrdinals( IndexReader reader, int docBase ) throws IOException;
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.IOException;
+
+/**
+ * Mapping from the documents of a single IndexReader to integer
+ * ordinals for the values of some field, and from those ordinals
+ * back to the values.
+ *
+ * Ordinal 0 is reserved for documents which have no value, and
+ * <code>getValue(0)</code> returns <code>null</code>.  Two documents
+ * have the same value if and only if they have the same ordinal, so
+ * collectors can compare ordinals rather than Strings.
+ */
+public abstract class Ordinals
+{
+  /**
+   * Returns the ordinal of the value for the given document, or 0 if
+   * the document has no value.
+   */
+  public abstract int getOrd( int docId ) throws IOException;
+
+  /**
+   * Returns the value for the given ordinal.
+   */
+  public abstract String getValue( int ord );
+
+  /**
+   * Returns the number of ordinals, including the reserved 0.
+   */
+  public abstract int size( );
+
+  /**
+   * Returns the SiteSketch.hash() of the value for the given ordinal.
+   * Implementations may want to compute these once, up front.
+   */
+  public long getHash( int ord )
+  {
+    return SiteSketch.hash( getValue( ord ) );
+  }
+
+  /**
+   * Returns an object identifying the space of ordinals, if they are
+   * shared with the Ordinals of other readers, such that the same
+   * ordinal means the same value in all of them.  Returns
+   * <code>null</code>, the default, if the ordinals are only
+   * meaningful within a single reader.
+   */
+  public Object getOrdinalSpace( )
+  {
+    return null;
+  }
+
+}
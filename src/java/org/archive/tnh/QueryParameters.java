@@ -32,6 +32,11 @@ public class QueryParameters
   public String[] collections = EMPTY_STRINGS;
   public String[] types       = EMPTY_STRINGS;
   public String[] dates       = EMPTY_STRINGS;
+  public String   after       = "";
+  public String[] facets      = EMPTY_STRINGS;
+  public String[] collapse    = EMPTY_STRINGS;
+  public String   sort        = "";
+  public int      timeout     = -1;
 
   public QueryParameters()
   {
@@ -49,5 +54,10 @@ public class QueryParameters
     this.collections = other.collections;
     this.types       = other.types;
     this.dates       = other.dates;
+    this.after       = other.after;
+    this.facets      = other.facets;
+    this.collapse    = other.collapse;
+    this.sort        = other.sort;
+    this.timeout     = other.timeout;
   }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.util.*;
+
+import org.apache.lucene.search.Searchable;
+
+/**
+ * Least-recently used cache of search Results, bounded by both the
+ * number of entries and their approximate size in bytes.
+ *
+ * Each entry is a window of the top hits for a query, along with the
+ * names and the searchers of the indexes it was searched on.  The
+ * searchers are checked on every lookup, so a Result is never served
+ * once its indexes have been re-opened, but invalidate() should be
+ * called for a re-opened index all the same, to free up the space.
+ *
+ * Search builds the keys and decides which windows can be served
+ * from which entries; this only does the bookkeeping.
+ */
+public class ResultCache
+{
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+  public static final int DEFAULT_MAX_BYTES   = 32 << 20;
+
+  final int  maxEntries;
+  final long maxBytes;
+
+  long bytes;
+  long hits;
+  long misses;
+
+  final LinkedHashMap<Object,Entry> entries = new LinkedHashMap<Object,Entry>( 16, 0.75f, true );
+
+  static class Entry
+  {
+    final String[]      names;
+    final Searchable[]  leaves;
+    final int           maxHits;
+    final Search.Result result;
+    final long          bytes;
+
+    Entry( String[] names, Searchable[] leaves, int maxHits, Search.Result result )
+    {
+      this.names   = names;
+      this.leaves  = leaves;
+      this.maxHits = maxHits;
+      this.result  = result;
+      this.bytes   = sizeInBytes( result );
+    }
+  }
+
+  public ResultCache( )
+  {
+    this( DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES );
+  }
+
+  public ResultCache( int maxEntries, long maxBytes )
+  {
+    if ( maxEntries < 1 ) throw new IllegalArgumentException( "maxEntries must be > 0" );
+    if ( maxBytes   < 1 ) throw new IllegalArgumentException( "maxBytes must be > 0" );
+
+    this.maxEntries = maxEntries;
+    this.maxBytes   = maxBytes;
+  }
+
+  /**
+   * Returns the entry for the key, if it was searched on the given
+   * leaf searchers, in order, otherwise <code>null</code>.
+   */
+  synchronized Entry get( Object key, Searchable[] leaves )
+  {
+    Entry entry = this.entries.get( key );
+
+    if ( entry != null && ! Arrays.equals( entry.leaves, leaves ) )
+      {
+        this.remove( key );
+
+        entry = null;
+      }
+
+    if ( entry == null ) this.misses++;
+    else                 this.hits++;
+
+    return entry;
+  }
+
+  /**
+   * Add the Result of a search for the top <code>maxHits</code>,
+   * replacing any previous entry for the key, then evict the
+   * least-recently used entries until the cache is within bounds.
+   */
+  synchronized void put( Object key, String[] names, Searchable[] leaves, int maxHits, Search.Result result )
+  {
+    Entry entry = new Entry( names, leaves, maxHits, result );
+
+    // Don't let one huge Result flush out everything else.
+    if ( entry.bytes > this.maxBytes / 4 ) return ;
+
+    this.remove( key );
+    this.entries.put( key, entry );
+    this.bytes += entry.bytes;
+
+    Iterator<Entry> i = this.entries.values( ).iterator( );
+    while ( ( this.entries.size( ) > this.maxEntries || this.bytes > this.maxBytes ) && i.hasNext( ) )
+      {
+        this.bytes -= i.next( ).bytes;
+        i.remove( );
+      }
+  }
+
+  private void remove( Object key )
+  {
+    Entry old = this.entries.remove( key );
+
+    if ( old != null ) this.bytes -= old.bytes;
+  }
+
+  /**
+   * Remove all the entries which include the named index.
+   */
+  public synchronized void invalidate( String indexName )
+  {
+    Iterator<Entry> i = this.entries.values( ).iterator( );
+    while ( i.hasNext( ) )
+      {
+        Entry entry = i.next( );
+
+        if ( Arrays.asList( entry.names ).contains( indexName ) )
+          {
+            this.bytes -= entry.bytes;
+            i.remove( );
+          }
+      }
+  }
+
+  public synchronized void clear( )
+  {
+    this.entries.clear( );
+    this.bytes = 0;
+  }
+
+  public synchronized int size( )
+  {
+    return this.entries.size( );
+  }
+
+  public synchronized long sizeInBytes( )
+  {
+    return this.bytes;
+  }
+
+  public synchronized long getHitCount( )
+  {
+    return this.hits;
+  }
+
+  public synchronized long getMissCount( )
+  {
+    return this.misses;
+  }
+
+  /**
+   * Rough size of a Result, counting the Hits, their Strings and the
+   * facet counts.
+   */
+  static long sizeInBytes( Search.Result result )
+  {
+    long bytes = 128;
+    for ( Hit hit : result.hits )
+      {
+        bytes += 64 + sizeInBytes( hit.site );
+
+        if ( hit.keys != null )
+          {
+            bytes += 16 + 8 * hit.keys.length;
+            for ( String key : hit.keys ) bytes += sizeInBytes( key );
+          }
+      }
+
+    if ( result.facets != null )
+      {
+        for ( Map<String,Integer> counts : result.facets.values( ) )
+          {
+            bytes += 64;
+            for ( String value : counts.keySet( ) ) bytes += 48 + sizeInBytes( value );
+          }
+      }
+
+    if ( result.sketch != null ) bytes += 32 + SiteSketch.M;
+
+    return bytes;
+  }
+
+  static long sizeInBytes( String s )
+  {
+    return s == null ? 0 : 48 + 2 * s.length( );
+  }
+
+}
@@ -18,6 +18,9 @@ package org.archive.tnh;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import org.apache.lucene.search.*;
 import org.apache.lucene.analysis.*;
@@ -28,10 +31,99 @@ import org.apache.lucene.util.Version;
 
 public class Search
 {
+  public static final Logger LOG = Logger.getLogger( Search.class.getName() );
+
   private static final DefaultQueryTranslator TRANSLATOR = new DefaultQueryTranslator( );
 
-  public Map<String,Searcher> searchers;
+  /**
+   * The searchers of the current Snapshot.
+   */
+  public volatile Map<String,Searcher> searchers;
   public FieldCache           siteCache;
+  public FacetCache           facetCache;
+  public Map<String,FieldCacheLong> sortCaches = new HashMap<String,FieldCacheLong>( );
+  public ExecutorService      executor;
+  public ResultCache          resultCache;
+
+  /**
+   * The default number of MultiSearchers, for combinations of named
+   * indexes, kept by buildMultiSearcher().
+   */
+  public static final int DEFAULT_MULTI_SEARCHER_CACHE_SIZE = 64;
+
+  int             multiSearcherCacheSize = DEFAULT_MULTI_SEARCHER_CACHE_SIZE;
+  ExecutorService parallelExecutor;
+  ExecutorService searchExecutor;
+
+  // The IndexRanges of the searchers searched, by identity.
+  final Map<Searchable,IndexRanges> indexRanges = new WeakHashMap<Searchable,IndexRanges>( );
+
+  // The names of the IndexSearchers of all the live Snapshots.
+  final Map<Searchable,String> leafNames = new WeakHashMap<Searchable,String>( );
+
+  volatile Snapshot snapshot;
+
+  /**
+   * An immutable map of the searchers, which is replaced as a whole by
+   * swap() when indexes are re-opened.  A search holds a reference to
+   * the Snapshot it uses, from acquire() to release(), and the readers
+   * retired by the swap which replaced it are closed once the last
+   * reference is released.
+   */
+  public final class Snapshot
+  {
+    final Map<String,Searcher> searchers;
+    final AtomicInteger        refs = new AtomicInteger( 1 );
+
+    volatile Collection<IndexReader> retired = Collections.emptyList( );
+
+    // Least-recently used MultiSearchers, keyed by their sorted index
+    // names.
+    final Map<String,MultiSearcher> multiSearchers = new LinkedHashMap<String,MultiSearcher>( 16, 0.75f, true )
+      {
+        protected boolean removeEldestEntry( Map.Entry<String,MultiSearcher> eldest )
+        {
+          return size( ) > multiSearcherCacheSize;
+        }
+      };
+
+    Snapshot( Map<String,Searcher> searchers )
+    {
+      this.searchers = searchers;
+    }
+
+    public Map<String,Searcher> getSearchers( )
+    {
+      return this.searchers;
+    }
+
+    boolean incRef( )
+    {
+      for ( int refs = this.refs.get( ) ; refs > 0 ; refs = this.refs.get( ) )
+        {
+          if ( this.refs.compareAndSet( refs, refs + 1 ) ) return true;
+        }
+
+      return false;
+    }
+
+    void decRef( )
+    {
+      if ( this.refs.decrementAndGet( ) > 0 ) return ;
+
+      for ( IndexReader reader : this.retired )
+        {
+          try
+            {
+              reader.close( );
+            }
+          catch ( IOException ioe )
+            {
+              LOG.warning( "Error closing retired reader: " + reader + ": " + ioe );
+            }
+        }
+    }
+  }
 
   public Search( Searcher searcher )
   {
@@ -53,8 +145,11 @@ public class Search
 
   private void init( Map<String,Searcher> searchers )
   {
+    this.snapshot  = new Snapshot( searchers );
     this.searchers = searchers;
+    this.addLeafNames( searchers );
     this.siteCache = new FieldCacheLucene( "site" );
+    this.facetCache= new FacetCache( );
   }
 
   public FieldCache getSiteCache( )
@@ -68,6 +163,215 @@ public class Search
     this.siteCache = siteCache;
   }
 
+  public FacetCache getFacetCache( )
+  {
+    return this.facetCache;
+  }
+
+  public void setFacetCache( FacetCache facetCache )
+  {
+    if ( facetCache == null ) throw new IllegalArgumentException( "facetCache cannot be null" );
+    this.facetCache = facetCache;
+  }
+
+  public ExecutorService getExecutor( )
+  {
+    return this.executor;
+  }
+
+  /**
+   * Set the ExecutorService used to search the sub-searchers of a
+   * MultiSearcher concurrently.  If <code>null</code>, which is the
+   * default, they are searched serially.
+   */
+  public void setExecutor( ExecutorService executor )
+  {
+    this.executor = executor;
+  }
+
+  public ResultCache getResultCache( )
+  {
+    return this.resultCache;
+  }
+
+  /**
+   * Set the ResultCache for the results of searches on named indexes,
+   * or <code>null</code>, which is the default, for none.
+   */
+  public void setResultCache( ResultCache resultCache )
+  {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Remove the cached results which include the named index, which
+   * should be called whenever it is re-opened.
+   */
+  public void invalidate( String indexName )
+  {
+    if ( this.resultCache != null ) this.resultCache.invalidate( indexName );
+  }
+
+  public int getMultiSearcherCacheSize( )
+  {
+    return this.multiSearcherCacheSize;
+  }
+
+  /**
+   * Set the number of MultiSearchers kept by buildMultiSearcher(), 0
+   * to build a new one every time.
+   */
+  public void setMultiSearcherCacheSize( int size )
+  {
+    if ( size < 0 ) throw new IllegalArgumentException( "size must be >= 0" );
+
+    Snapshot snapshot = this.snapshot;
+    synchronized ( snapshot.multiSearchers )
+      {
+        this.multiSearcherCacheSize = size;
+        snapshot.multiSearchers.clear( );
+      }
+  }
+
+  public ExecutorService getSearchExecutor( )
+  {
+    return this.searchExecutor;
+  }
+
+  /**
+   * Set the ExecutorService which runs the searches submitted with
+   * searchAsync(), usually one from newBoundedExecutor().  It must
+   * not be the same as the executor for the sub-searchers, as the
+   * searches wait on those.
+   */
+  public void setSearchExecutor( ExecutorService searchExecutor )
+  {
+    this.searchExecutor = searchExecutor;
+  }
+
+  /**
+   * Returns an ExecutorService with a fixed number of threads and a
+   * queue of at most queueSize searches waiting for them, which
+   * rejects any more with a RejectedExecutionException rather than
+   * letting them pile up.
+   */
+  public static ThreadPoolExecutor newBoundedExecutor( int numThreads, int queueSize )
+  {
+    if ( numThreads < 1 ) throw new IllegalArgumentException( "numThreads must be > 0" );
+    if ( queueSize  < 1 ) throw new IllegalArgumentException( "queueSize must be > 0" );
+
+    return new ThreadPoolExecutor( numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue<Runnable>( queueSize ),
+                                   new ThreadPoolExecutor.AbortPolicy( ) );
+  }
+
+  public ExecutorService getParallelExecutor( )
+  {
+    return this.parallelExecutor;
+  }
+
+  /**
+   * Set the ExecutorService for the ParallelMultiSearchers built by
+   * buildMultiSearcher(), which look up the document frequencies of
+   * the query terms in all the sub-searchers in parallel.  If
+   * <code>null</code>, which is the default, plain MultiSearchers are
+   * built.
+   */
+  public void setParallelExecutor( ExecutorService parallelExecutor )
+  {
+    Snapshot snapshot = this.snapshot;
+    synchronized ( snapshot.multiSearchers )
+      {
+        this.parallelExecutor = parallelExecutor;
+        snapshot.multiSearchers.clear( );
+      }
+  }
+
+  /**
+   * Returns the current Snapshot, with a reference held on it, which
+   * must be given back with release() once the search and anything
+   * which reads from its searchers, such as fetching the documents of
+   * the hits, is done.
+   */
+  public Snapshot acquire( )
+  {
+    while ( true )
+      {
+        Snapshot snapshot = this.snapshot;
+
+        // Fails only if it was swapped out and drained meanwhile.
+        if ( snapshot.incRef( ) ) return snapshot;
+      }
+  }
+
+  public void release( Snapshot snapshot )
+  {
+    snapshot.decRef( );
+  }
+
+  /**
+   * Atomically replace the searchers with a new map, e.g. after some
+   * of the indexes have been re-opened.  The given readers, those
+   * which were replaced, are closed once the searches using the old
+   * Snapshot have released it.  The cached results for the indexes
+   * which changed are invalidated.
+   */
+  public synchronized void swap( Map<String,Searcher> searchers, Collection<IndexReader> retired )
+  {
+    this.swap( this.newSnapshot( searchers ), retired );
+  }
+
+  /**
+   * Returns a Snapshot of the given searchers, which can be searched,
+   * e.g. to warm it up, before it is swapped in.
+   */
+  public Snapshot newSnapshot( Map<String,Searcher> searchers )
+  {
+    if ( searchers.get( "" ) == null )
+      {
+        throw new IllegalArgumentException( "Searchers map does not contain a searcher for key \"\"" );
+      }
+
+    this.addLeafNames( searchers );
+
+    return new Snapshot( searchers );
+  }
+
+  /**
+   * Atomically replace the current Snapshot with one from
+   * newSnapshot(), as above.
+   */
+  public synchronized void swap( Snapshot snapshot, Collection<IndexReader> retired )
+  {
+    Map<String,Searcher> searchers = snapshot.searchers;
+
+    Snapshot old = this.snapshot;
+
+    this.snapshot  = snapshot;
+    this.searchers = searchers;
+
+    for ( Map.Entry<String,Searcher> entry : old.searchers.entrySet( ) )
+      {
+        if ( searchers.get( entry.getKey( ) ) != entry.getValue( ) ) this.invalidate( entry.getKey( ) );
+      }
+
+    old.retired = retired;
+    old.decRef( );
+  }
+
+  private void addLeafNames( Map<String,Searcher> searchers )
+  {
+    synchronized ( this.leafNames )
+      {
+        // Only the named IndexSearchers can be told apart, not
+        // MultiSearchers such as "".
+        for ( Map.Entry<String,Searcher> entry : searchers.entrySet( ) )
+          {
+            if ( ! ( entry.getValue( ) instanceof MultiSearcher ) ) this.leafNames.put( entry.getValue( ), entry.getKey( ) );
+          }
+      }
+  }
+
   public boolean hasIndex( String name )
   {
     return this.searchers.containsKey( name );
@@ -105,9 +409,50 @@ public class Search
   public Result search( String indexNames[], Query query, int maxHits, int hitsPerSite )
     throws Exception
   {
-    Searcher s = buildMultiSearcher( indexNames );
+    return this.search( indexNames, query, maxHits, hitsPerSite, null );
+  }
 
-    return this.search( s, query, maxHits, hitsPerSite );
+  public Result search( String indexNames[], Query query, int maxHits, int hitsPerSite, Options options )
+    throws Exception
+  {
+    return this.search( this.snapshot, indexNames, query, maxHits, hitsPerSite, options );
+  }
+
+  /**
+   * Search the named indexes of the given Snapshot, which should be
+   * held with acquire() until the Result has been used.
+   */
+  public Result search( Snapshot snapshot, String indexNames[], Query query, int maxHits, int hitsPerSite, Options options )
+    throws Exception
+  {
+    Searcher s = buildMultiSearcher( snapshot, indexNames );
+
+    return this.search( s, query, maxHits, hitsPerSite, options );
+  }
+
+  /**
+   * Submit the search to the search executor, returning its Result
+   * as a Future.  If the executor is saturated, fails fast with a
+   * RejectedExecutionException, so that the caller can shed the load
+   * rather than wait.
+   */
+  public Future<Result> searchAsync( String indexNames[], Query query, int maxHits, int hitsPerSite, Options options )
+  {
+    return this.searchAsync( this.snapshot, indexNames, query, maxHits, hitsPerSite, options );
+  }
+
+  public Future<Result> searchAsync( final Snapshot snapshot, final String indexNames[], final Query query, final int maxHits, final int hitsPerSite, final Options options )
+  {
+    if ( this.searchExecutor == null ) throw new IllegalStateException( "No search executor" );
+
+    return this.searchExecutor.submit( new Callable<Result>( )
+      {
+        public Result call( )
+          throws Exception
+        {
+          return search( snapshot, indexNames, query, maxHits, hitsPerSite, options );
+        }
+      } );
   }
 
   public Result search( Searcher searcher, String query, int maxHits, int hitsPerSite )
@@ -120,38 +465,616 @@ public class Search
 
   public Result search( Searcher searcher, Query query, int maxHits, int hitsPerSite )
     throws Exception
+  {
+    return this.search( searcher, query, maxHits, hitsPerSite, null );
+  }
+
+  /**
+   * Search with the given Options, which may be <code>null</code> for
+   * the defaults.
+   */
+  public Result search( Searcher searcher, Query query, int maxHits, int hitsPerSite, Options options )
+    throws Exception
   {
     if ( searcher == null ) throw new IllegalArgumentException( "searcher cannot be null" );
     if ( query    == null ) throw new IllegalArgumentException( "query cannot be null" );
     if ( maxHits  <= 0    ) throw new IllegalArgumentException( "maxHits must be > 0" );
     if ( hitsPerSite < 0  ) throw new IllegalArgumentException( "hitsPerSite must be >= 0" );
 
-    CollapsingCollector collector = new CollapsingCollector( this.siteCache, maxHits, hitsPerSite );
+    if ( options == null ) options = new Options( );
+
+    if ( this.resultCache != null )
+      {
+        return this.searchCached( searcher, query, maxHits, hitsPerSite, options );
+      }
+
+    return this.execute( searcher, query, maxHits, hitsPerSite, options );
+  }
+
+  /**
+   * Round the number of hits up to the next power of two.
+   */
+  static int roundWindow( int maxHits )
+  {
+    if ( maxHits <= 1 || maxHits > ( 1 << 30 ) ) return maxHits;
+
+    return Integer.highestOneBit( maxHits - 1 ) << 1;
+  }
+
+  /**
+   * Serve the hits from the ResultCache if it has a window of at least
+   * maxHits for the same search, or all the hits there are, since the
+   * top maxHits are the first maxHits of any larger window.  Otherwise
+   * search and cache the result.
+   */
+  private Result searchCached( Searcher searcher, Query query, int maxHits, int hitsPerSite, Options options )
+    throws Exception
+  {
+    IndexRanges ranges = getIndexRanges( searcher );
+
+    // Results from searchers other than the named indexes could never
+    // be invalidated.
+    if ( ! ranges.named ) return this.execute( searcher, query, maxHits, hitsPerSite, options );
 
-    searcher.search( query, collector );
+    List<Object> key = Arrays.asList( Arrays.asList( ranges.names ),
+                                      query,
+                                      options.filter,
+                                      hitsPerSite,
+                                      options.after == null ? null : options.after.encode( ),
+                                      options.facets == null ? null : Arrays.asList( options.facets ),
+                                      options.collapseFields == null ? null : Arrays.asList( options.collapseFields ),
+                                      options.collapseLimits == null ? null : Arrays.toString( options.collapseLimits ),
+                                      options.estimateTotal,
+                                      options.sortField,
+                                      options.sortAscending,
+                                      options.sortScoreTies );
+
+    ResultCache.Entry entry = this.resultCache.get( key, ranges.leaves );
+
+    Result result;
+    if ( entry != null && ( entry.maxHits >= maxHits || entry.result.hits.length < entry.maxHits ) )
+      {
+        result = entry.result;
+      }
+    else
+      {
+        // Collect a larger window than asked for, so that the next
+        // few pages, each asking for a few more hits, are served from
+        // the same entry.
+        int windowHits = roundWindow( maxHits );
+
+        result = this.execute( searcher, query, windowHits, hitsPerSite, options );
+
+        // Partial results are not worth keeping.
+        if ( ! result.timedOut ) this.resultCache.put( key, ranges.names, ranges.leaves, windowHits, result );
+      }
+
+    // Hand out a copy, trimmed to maxHits, rather than the cached
+    // Result itself.
+    Result window = new Result( );
+    window.searcher   = searcher;
+    window.timedOut   = result.timedOut;
+    window.numRawHits = result.numRawHits;
+    window.hits       = Arrays.copyOf( result.hits, Math.min( maxHits, result.hits.length ) );
+    window.facets     = result.facets;
+    window.sketch     = result.sketch;
+
+    estimate( window, hitsPerSite, options );
+
+    return window;
+  }
+
+  private Result execute( Searcher searcher, Query query, int maxHits, int hitsPerSite, Options options )
+    throws Exception
+  {
+    if ( this.executor != null && searcher instanceof MultiSearcher )
+      {
+        return this.searchConcurrently( (MultiSearcher) searcher, query, maxHits, hitsPerSite, options );
+      }
+
+    long baseline = TimeLimitingCollector.getGlobalCounter( ).get( );
+
+    AbstractCollapsingCollector collector = newCollector( maxHits, hitsPerSite, options );
+
+    FacetCounter facets = newFacetCounter( collector, options );
+    SiteSketch   sketch = newSketch( collector, hitsPerSite, options );
+
+    boolean timedOut = false;
+    try
+      {
+        searcher.search( query, options.filter, limit( collector, options, baseline ) );
+      }
+    catch ( TimeLimitingCollector.TimeExceededException tee )
+      {
+        timedOut = true;
+      }
 
     Result result = new Result( );
     result.searcher  = searcher;
+    result.timedOut  = timedOut;
     result.numRawHits= collector.getNumUncollapsedHits( );
     result.hits      = collector.getHits( );
+    result.facets    = facets == null ? null : facets.getCounts( );
+    result.sketch    = sketch;
+
+    estimate( result, hitsPerSite, options );
+    setIndexNames( result );
  
     return result;
   }
 
+  /**
+   * Search each of the MultiSearcher's sub-searchers in its own task
+   * on the executor, each with its own collapsing collector, then
+   * merge the partial results.
+   *
+   * The Weight is created once, by the MultiSearcher, so that the
+   * scores are the same as if the MultiSearcher had been searched
+   * serially.
+   *
+   * Every hit in the serial search's top maxHits is also in the top
+   * maxHits of its own sub-searcher, since the hits ranked above it
+   * there are a subset of those ranked above it overall.  So merging
+   * the partial results gives the same hits as the serial search.
+   * That holds for collapsing on several keys too, except for the
+   * cases where the MultiCollapsingCollector itself is not exact.
+   */
+  public Result searchConcurrently( MultiSearcher searcher, Query query, final int maxHits, final int hitsPerSite, final Options options )
+    throws Exception
+  {
+    final long baseline = TimeLimitingCollector.getGlobalCounter( ).get( );
+
+    final Weight weight = searcher.createNormalizedWeight( query );
+
+    List<Searchable> subSearchers = new ArrayList<Searchable>( );
+    List<Integer>    starts       = new ArrayList<Integer>( );
+    flatten( searcher, 0, subSearchers, starts );
+
+    List<Future<Result>> futures = new ArrayList<Future<Result>>( subSearchers.size( ) );
+    for ( int i = 0 ; i < subSearchers.size( ) ; i++ )
+      {
+        final Searchable sub   = subSearchers.get( i );
+        final int        start = starts.get( i );
+
+        futures.add( this.executor.submit( new Callable<Result>( )
+          {
+            public Result call( )
+              throws IOException
+            {
+              AbstractCollapsingCollector collector = newCollector( maxHits, hitsPerSite, options );
+
+              FacetCounter facets = newFacetCounter( collector, options );
+              SiteSketch   sketch = newSketch( collector, hitsPerSite, options );
+
+              boolean timedOut = false;
+              try
+                {
+                  sub.search( weight, options.filter, limit( new OffsetCollector( collector, start ), options, baseline ) );
+                }
+              catch ( TimeLimitingCollector.TimeExceededException tee )
+                {
+                  timedOut = true;
+                }
+
+              Result partial = new Result( );
+              partial.timedOut   = timedOut;
+              partial.numRawHits = collector.getNumUncollapsedHits( );
+              partial.hits       = collector.getHits( );
+              partial.facets     = facets == null ? null : facets.getCounts( );
+              partial.sketch     = sketch;
+
+              return partial;
+            }
+          } ) );
+      }
+
+    List<Result> partials = new ArrayList<Result>( futures.size( ) );
+    try
+      {
+        for ( Future<Result> future : futures )
+          {
+            partials.add( future.get( ) );
+          }
+      }
+    catch ( ExecutionException ee )
+      {
+        for ( Future<Result> future : futures ) future.cancel( true );
+
+        Throwable cause = ee.getCause( );
+        if ( cause instanceof Exception ) throw (Exception) cause;
+        throw ee;
+      }
+
+    Result result = merge( partials, maxHits, collapseLimits( hitsPerSite, options ), options.after, comparator( options ) );
+    result.searcher = searcher;
+
+    estimate( result, hitsPerSite, options );
+    setIndexNames( result );
+
+    return result;
+  }
+
+  /**
+   * If the Options have a time budget, wrap the collector in a
+   * TimeLimitingCollector which throws a TimeExceededException once
+   * the budget, counted from the baseline, is spent.  The hits
+   * collected up to then are left in the collector.
+   */
+  private static Collector limit( Collector collector, Options options, long baseline )
+  {
+    if ( options.timeout <= 0 ) return collector;
+
+    TimeLimitingCollector limited = new TimeLimitingCollector( collector, TimeLimitingCollector.getGlobalCounter( ), options.timeout );
+    limited.setBaseline( baseline );
+
+    return limited;
+  }
+
+  /**
+   * Recursively gather the leaf sub-searchers of the given searcher,
+   * along with the docId each one starts at.
+   */
+  private static void flatten( Searchable searchable, int start, List<Searchable> subSearchers, List<Integer> starts )
+    throws IOException
+  {
+    if ( searchable instanceof MultiSearcher )
+      {
+        for ( Searchable sub : ((MultiSearcher) searchable).getSearchables( ) )
+          {
+            flatten( sub, start, subSearchers, starts );
+
+            start += sub.maxDoc( );
+          }
+      }
+    else
+      {
+        subSearchers.add( searchable );
+        starts.add( start );
+      }
+  }
+
+  /**
+   * Merge partial, collapsed results into a single Result, keeping
+   * the top maxHits with at most hitsPerSite per site, counting the
+   * hits already shown before the Cursor, if there is one.
+   */
+  public static Result merge( List<Result> partials, int maxHits, int hitsPerSite, Cursor after )
+  {
+    return merge( partials, maxHits, new int[] { hitsPerSite }, after );
+  }
+
+  /**
+   * Merge partial results collapsed on several keys, with a limit
+   * for each level of MultiCollapsingCollector.groupKeys().
+   */
+  public static Result merge( List<Result> partials, int maxHits, int[] limits, Cursor after )
+  {
+    return merge( partials, maxHits, limits, after, CollapsingCollector.SCORE_COMPARATOR );
+  }
+
+  /**
+   * Merge partial results ranked by the given Comparator, which puts
+   * the lowest-ranked Hits first.
+   */
+  public static Result merge( List<Result> partials, int maxHits, int[] limits, Cursor after, Comparator<Hit> comparator )
+  {
+    Result result = new Result( );
+
+    List<Hit> all = new ArrayList<Hit>( );
+    for ( Result partial : partials )
+      {
+        result.numRawHits += partial.numRawHits;
+        result.timedOut   |= partial.timedOut;
+
+        if ( partial.facets != null )
+          {
+            if ( result.facets == null ) result.facets = new LinkedHashMap<String,Map<String,Integer>>( );
+
+            FacetCounter.merge( result.facets, partial.facets );
+          }
+
+        if ( partial.sketch != null )
+          {
+            if ( result.sketch == null ) result.sketch = new SiteSketch( partial.sketch.hitsPerSite );
+
+            result.sketch.merge( partial.sketch );
+          }
+
+        all.addAll( Arrays.asList( partial.hits ) );
+      }
+
+    Collections.sort( all, Collections.reverseOrder( comparator ) );
+
+    List<Hit> hits = new ArrayList<Hit>( Math.min( maxHits, all.size( ) ) );
+    Map<String,Integer> perGroup = new HashMap<String,Integer>( );
+    for ( Hit hit : all )
+      {
+        if ( hits.size( ) == maxHits ) break;
+
+        String[] groups = MultiCollapsingCollector.groupKeys( hit );
+
+        boolean full = false;
+        for ( int i = 0 ; i < groups.length && ! full ; i++ )
+          {
+            full = limits[i] > 0 && count( perGroup, groups[i], after ) >= limits[i];
+          }
+
+        if ( full ) continue ;
+
+        for ( String group : groups )
+          {
+            perGroup.put( group, count( perGroup, group, after ) + 1 );
+          }
+
+        hits.add( hit );
+      }
+
+    result.hits = hits.toArray( new Hit[hits.size()] );
+
+    return result;
+  }
+
+  private static int count( Map<String,Integer> counts, String group, Cursor after )
+  {
+    Integer count = counts.get( group );
+
+    if ( count == null ) count = after == null ? 0 : after.getCount( group );
+
+    return count;
+  }
+
+  /**
+   * Collector wrapper which adds a fixed offset to the docBase, as
+   * the MultiSearcher does for its sub-searchers.
+   */
+  static class OffsetCollector extends Collector
+  {
+    final Collector collector;
+    final int       start;
+
+    OffsetCollector( Collector collector, int start )
+    {
+      this.collector = collector;
+      this.start     = start;
+    }
+
+    public void setScorer( Scorer scorer ) throws IOException
+    {
+      this.collector.setScorer( scorer );
+    }
+
+    public void collect( int doc ) throws IOException
+    {
+      this.collector.collect( doc );
+    }
+
+    public void setNextReader( IndexReader reader, int docBase ) throws IOException
+    {
+      this.collector.setNextReader( reader, this.start + docBase );
+    }
+
+    public boolean acceptsDocsOutOfOrder( )
+    {
+      return this.collector.acceptsDocsOutOfOrder( );
+    }
+  }
+
+  /**
+   * Create a collapsing collector suited to the siteCache.  If the
+   * siteCache can provide ordinals, then collapse on those, using the
+   * calling thread's pooled collector; otherwise on the site Strings.
+   */
+  public AbstractCollapsingCollector newCollector( int maxHits, int hitsPerSite, Options options )
+  {
+    boolean multi = options.collapseFields != null && options.collapseFields.length > 0;
+
+    AbstractCollapsingCollector collector;
+    if ( options.sortField != null )
+      {
+        if ( multi ) throw new IllegalArgumentException( "Cannot both sort and collapse on further fields" );
+
+        collector = new HeapCollapsingCollector( this.siteCache, getSortCache( options.sortField, ! options.sortAscending ),
+                                                 ! options.sortAscending, options.sortScoreTies, maxHits, hitsPerSite );
+      }
+    else if ( multi )
+      {
+        FieldCache[] keyCaches = new FieldCache[options.collapseFields.length + 1];
+
+        keyCaches[0] = this.siteCache;
+        for ( int i = 0 ; i < options.collapseFields.length ; i++ )
+          {
+            keyCaches[i+1] = new FieldCacheLucene( options.collapseFields[i] );
+          }
+
+        collector = new MultiCollapsingCollector( keyCaches, collapseLimits( hitsPerSite, options ), maxHits );
+      }
+    else if ( this.siteCache instanceof OrdinalFieldCache )
+      {
+        collector = OrdinalCollapsingCollector.acquire( (OrdinalFieldCache) this.siteCache, maxHits, hitsPerSite );
+      }
+    else
+      {
+        collector = new HeapCollapsingCollector( this.siteCache, maxHits, hitsPerSite );
+      }
+
+    if ( options.after != null ) collector.setCursor( options.after );
+
+    return collector;
+  }
+
+  /**
+   * Returns the FieldCacheLong for sorting on the given field, which
+   * keeps the largest value of each document if <code>largest</code>
+   * is true, and the smallest otherwise.
+   */
+  public FieldCacheLong getSortCache( String fieldName, boolean largest )
+  {
+    String key = fieldName + ( largest ? ":max" : ":min" );
+
+    synchronized ( this.sortCaches )
+      {
+        FieldCacheLong cache = this.sortCaches.get( key );
+
+        if ( cache == null )
+          {
+            cache = new FieldCacheLong( fieldName, largest );
+
+            this.sortCaches.put( key, cache );
+          }
+
+        return cache;
+      }
+  }
+
+  /**
+   * Returns the Comparator for the ranking given by the Options,
+   * lowest-ranked first.
+   */
+  private static Comparator<Hit> comparator( Options options )
+  {
+    if ( options.sortField == null ) return CollapsingCollector.SCORE_COMPARATOR;
+
+    return HeapCollapsingCollector.comparator( ! options.sortAscending, options.sortScoreTies );
+  }
+
+  /**
+   * Returns the limits for the site and each of the further collapse
+   * fields.
+   */
+  private static int[] collapseLimits( int hitsPerSite, Options options )
+  {
+    int n = options.collapseFields == null ? 0 : options.collapseFields.length;
+
+    int[] limits = new int[n + 1];
+
+    limits[0] = hitsPerSite;
+    for ( int i = 0 ; i < n ; i++ )
+      {
+        limits[i+1] = options.collapseLimits[i];
+      }
+
+    return limits;
+  }
+
+  /**
+   * If an estimated total is requested, and there is any collapsing
+   * to estimate, create a SiteSketch and have the collector fill it.
+   * The sketch needs the hash of the site of every raw hit, which is
+   * only cheap with an OrdinalFieldCache or the default
+   * FieldCacheLucene; otherwise, the estimate falls back to the number
+   * of raw hits.
+   */
+  public SiteSketch newSketch( AbstractCollapsingCollector collector, int hitsPerSite, Options options )
+  {
+    if ( ! options.estimateTotal || hitsPerSite == 0 ) return null;
+
+    if ( ! ( this.siteCache instanceof OrdinalFieldCache || this.siteCache instanceof FieldCacheLucene ) ) return null;
+
+    SiteSketch sketch = new SiteSketch( hitsPerSite );
+
+    collector.setSketch( sketch );
+
+    return sketch;
+  }
+
+  /**
+   * Fill in the estimated number of collapsed hits, which can be no
+   * more than the number of raw hits, and no fewer than the hits
+   * actually collected, plus those on earlier pages.
+   */
+  private static void estimate( Result result, int hitsPerSite, Options options )
+  {
+    if ( ! options.estimateTotal ) return ;
+
+    long estimate = result.sketch == null ? result.numRawHits : result.sketch.estimate( );
+
+    estimate = Math.min( estimate, result.numRawHits );
+    estimate = Math.max( estimate, result.hits.length + ( options.after == null ? 0 : options.after.position ) );
+
+    result.estimatedNumHits = estimate;
+  }
+
+  /**
+   * If any facets are requested, create a FacetCounter for them and
+   * have the collector drive it.
+   */
+  public FacetCounter newFacetCounter( AbstractCollapsingCollector collector, Options options )
+  {
+    if ( options.facets == null || options.facets.length == 0 ) return null;
+
+    FacetCounter facets = new FacetCounter( this.facetCache, options.facets );
+
+    collector.setFacets( facets );
+
+    return facets;
+  }
+
+  /**
+   * Returns a MultiSearcher over the named indexes.  The MultiSearcher
+   * for each distinct set of names is kept in a small LRU cache, since
+   * clients tend to ask for the same few combinations over and over.
+   *
+   * The indexes are searched in sorted order of their names, so the
+   * same names in any order give the same searcher.  A named index
+   * which is itself a MultiSearcher, such as "", contributes its
+   * sub-searchers, which numbers the documents the same way, and lets
+   * a ParallelMultiSearcher reach all of them.
+   */
   public MultiSearcher buildMultiSearcher( String indexNames[] )
     throws IOException
+  {
+    return this.buildMultiSearcher( this.snapshot, indexNames );
+  }
+
+  public MultiSearcher buildMultiSearcher( Snapshot snapshot, String indexNames[] )
+    throws IOException
   {
     if ( indexNames == null || indexNames.length == 0 ) throw new IllegalArgumentException( "At least one indexName must be specified" );
     
-    Searchable[] searchables = new Searchable[indexNames.length];
-    for ( int i = 0 ; i < indexNames.length ; i++ )
+    SortedSet<String> names = new TreeSet<String>( Arrays.asList( indexNames ) );
+
+    StringBuilder key = new StringBuilder( );
+    for ( String name : names )
       {
-        searchables[i] = this.searchers.get( indexNames[i] );
-        if ( searchables[i] == null ) throw new IllegalArgumentException( "Index not found: " + indexNames[i] );
+        key.append( name ).append( '\u0000' );
       }
-    
-    MultiSearcher searcher = new MultiSearcher( searchables );
-    
+
+    ExecutorService parallelExecutor;
+    synchronized ( snapshot.multiSearchers )
+      {
+        MultiSearcher searcher = snapshot.multiSearchers.get( key.toString( ) );
+
+        if ( searcher != null ) return searcher;
+
+        parallelExecutor = this.parallelExecutor;
+      }
+
+    List<Searchable> searchables = new ArrayList<Searchable>( );
+    for ( String name : names )
+      {
+        Searcher searcher = snapshot.searchers.get( name );
+        if ( searcher == null ) throw new IllegalArgumentException( "Index not found: " + name );
+
+        if ( searcher instanceof MultiSearcher )
+          {
+            searchables.addAll( Arrays.asList( ((MultiSearcher) searcher).getSearchables( ) ) );
+          }
+        else
+          {
+            searchables.add( searcher );
+          }
+      }
+
+    Searchable[] array = searchables.toArray( new Searchable[searchables.size( )] );
+
+    MultiSearcher searcher = parallelExecutor != null ? new ParallelMultiSearcher( parallelExecutor, array ) : new MultiSearcher( array );
+
+    synchronized ( snapshot.multiSearchers )
+      {
+        // Only cache it if the executor hasn't been changed meanwhile.
+        if ( parallelExecutor == this.parallelExecutor ) snapshot.multiSearchers.put( key.toString( ), searcher );
+      }
+
     return searcher;
   }
 
@@ -161,38 +1084,161 @@ public class Search
    * the index, or <code>null</code> if not found.
    */
   public String resolveIndexName( Searchable searcher, int docId )
+    throws IOException
   {
-    if ( searcher instanceof MultiSearcher )
-      {
-        MultiSearcher ms = (MultiSearcher) searcher;
-        
-        Searchable[] subsearchers = ms.getSearchables();
-        
-        searcher = subsearchers[ms.subSearcher( docId )];
+    return getIndexRanges( searcher ).getIndexName( docId );
+  }
+
+  /**
+   * Fill in the indexName of the result's hits.
+   */
+  private void setIndexNames( Result result )
+    throws IOException
+  {
+    if ( result.hits.length == 0 ) return ;
+
+    IndexRanges ranges = getIndexRanges( result.searcher );
 
-        return resolveIndexName( searcher, docId );
+    for ( Hit hit : result.hits )
+      {
+        hit.indexName = ranges.getIndexName( hit.id );
       }
-    if ( searcher instanceof IndexSearcher )
+  }
+
+  /**
+   * Returns the IndexRanges for the searcher, building them the first
+   * time the searcher is seen.
+   */
+  IndexRanges getIndexRanges( Searchable searcher )
+    throws IOException
+  {
+    synchronized ( this.indexRanges )
       {
-        for ( Map.Entry<String,Searcher> entry : this.searchers.entrySet() )
-          {
-            // System.err.println( "Considering " + entry.getKey() + " (" + entry.getValue() + " ) for result.searcher: " + searcher );
-
-            if ( entry.getValue() == searcher )
-              {
-                // System.err.println( "Result " + docId + " from searcher " + entry.getKey() );
-                
-                return entry.getKey( );
-              }
-          }
+        IndexRanges ranges = this.indexRanges.get( searcher );
 
-        // Didn't find the IndexSearcher.
-        return null;
+        if ( ranges != null ) return ranges;
       }
-    else
+
+    List<Searchable> subSearchers = new ArrayList<Searchable>( );
+    List<Integer>    starts       = new ArrayList<Integer>( );
+    flatten( searcher, 0, subSearchers, starts );
+
+    IndexRanges ranges;
+    synchronized ( this.leafNames )
+      {
+        ranges = new IndexRanges( subSearchers, starts, this.leafNames );
+      }
+
+    synchronized ( this.indexRanges )
       {
-        throw new RuntimeException( "Unknown searcher type: " + searcher );
-      }    
+        this.indexRanges.put( searcher, ranges );
+      }
+
+    return ranges;
+  }
+
+  /**
+   * Table of the docId each leaf sub-searcher of a searcher starts
+   * at, and the name of its index, so that the index a docId comes
+   * from can be found with a binary search.  Immutable.
+   */
+  static final class IndexRanges
+  {
+    final int[]        starts;
+    final String[]     names;
+    final Searchable[] leaves;
+    final boolean      named;
+
+    IndexRanges( List<Searchable> subSearchers, List<Integer> starts, Map<Searchable,String> names )
+      throws IOException
+    {
+      // Leave out empty sub-searchers, so that the starts are
+      // strictly increasing.
+      List<Integer> nonEmpty = new ArrayList<Integer>( starts.size( ) );
+      for ( int i = 0 ; i < subSearchers.size( ) ; i++ )
+        {
+          if ( subSearchers.get( i ).maxDoc( ) > 0 ) nonEmpty.add( i );
+        }
+
+      this.starts = new int       [nonEmpty.size( )];
+      this.names  = new String    [nonEmpty.size( )];
+      this.leaves = new Searchable[nonEmpty.size( )];
+      boolean named = true;
+      for ( int i = 0 ; i < this.starts.length ; i++ )
+        {
+          this.starts[i] = starts.get( nonEmpty.get( i ) );
+          this.leaves[i] = subSearchers.get( nonEmpty.get( i ) );
+          this.names [i] = names.get( this.leaves[i] );
+
+          named &= this.names[i] != null;
+        }
+      this.named = named;
+    }
+
+    String getIndexName( int docId )
+    {
+      int i = Arrays.binarySearch( this.starts, docId );
+
+      // Not a start itself, so it's in the range before the insertion
+      // point.
+      if ( i < 0 ) i = -i - 2;
+
+      return i < 0 ? null : this.names[i];
+    }
+  }
+
+  /**
+   * Optional settings for a search.
+   */
+  public static class Options
+  {
+    /**
+     * If not <code>null</code>, only hits ranked after this Cursor are
+     * collected.
+     */
+    public Cursor after;
+
+    /**
+     * If not <code>null</code>, only documents matching this Filter
+     * are collected, see FilterCache.
+     */
+    public Filter filter;
+
+    /**
+     * Names of the fields to count the values of, over all the hits,
+     * before collapsing.
+     */
+    public String[] facets;
+
+    /**
+     * Further fields to collapse on, within each site, and the limit
+     * on the number of hits for each.
+     */
+    public String[] collapseFields;
+    public int[]    collapseLimits;
+
+    /**
+     * If true, estimate the number of hits remaining after collapsing,
+     * i.e. the number of hits there would be on all the pages.
+     */
+    public boolean  estimateTotal;
+
+    /**
+     * If not <code>null</code>, rank the hits on the numeric values of
+     * this field, such as "date", rather than by score.  By default,
+     * the largest values come first and hits with the same value are
+     * ranked by score.  Cursors are not supported when sorting.
+     */
+    public String   sortField;
+    public boolean  sortAscending;
+    public boolean  sortScoreTies = true;
+
+    /**
+     * If > 0, the time budget of the search, in milliseconds.  Once it
+     * is spent, collection stops and the Result has the hits collected
+     * so far, with <code>timedOut</code> set.
+     */
+    public long     timeout;
   }
 
   public static class Result
@@ -200,6 +1246,24 @@ public class Search
     public Searcher searcher;
     public int      numRawHits;
     public Hit[]    hits;
+
+    /**
+     * Facet counts, by field then value, if any were requested.
+     */
+    public Map<String,Map<String,Integer>> facets;
+
+    /**
+     * Estimated number of hits after collapsing, if requested, or -1.
+     */
+    public long estimatedNumHits = -1;
+
+    /**
+     * True if the search ran out of time, so the hits are only those
+     * collected by then.
+     */
+    public boolean timedOut;
+
+    SiteSketch sketch;
   }
 
 }
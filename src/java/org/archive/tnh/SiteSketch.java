@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+/**
+ * Fixed-size HyperLogLog sketch for estimating the number of hits
+ * that would remain after collapsing, without keeping them all.
+ *
+ * With hitsPerSite of 1, that is just the number of distinct sites.
+ * With a higher hitsPerSite, each hit is counted as the distinct
+ * pair of its site and <code>docId % hitsPerSite</code>, so a site
+ * contributes at most hitsPerSite.  Since the documents of a site
+ * tend to be next to each other in the index, a site with at least
+ * hitsPerSite hits usually fills all its slots, but one with fewer
+ * can be undercounted when its docIds collide.
+ *
+ * The sketch uses 2^12 one-byte registers, for a standard error of
+ * about 1.6%, regardless of the number of hits.  Sketches of the
+ * same hitsPerSite can be merged, e.g. from concurrent searches of
+ * sub-indexes.
+ *
+ * Not thread-safe.
+ */
+public class SiteSketch
+{
+  static final int P = 12;
+  static final int M = 1 << P;
+
+  final int    hitsPerSite;
+  final byte[] registers = new byte[M];
+
+  public SiteSketch( int hitsPerSite )
+  {
+    if ( hitsPerSite < 1 ) throw new IllegalArgumentException( "hitsPerSite must be > 0" );
+
+    this.hitsPerSite = hitsPerSite;
+  }
+
+  /**
+   * Add a hit, given the hash() of its site and its docId.
+   */
+  public void add( long siteHash, int id )
+  {
+    long x = this.hitsPerSite == 1 ? siteHash : mix( siteHash + ( id % this.hitsPerSite ) );
+
+    int index = (int) ( x >>> ( 64 - P ) );
+    int rank  = Long.numberOfLeadingZeros( ( x << P ) | ( 1L << ( P - 1 ) ) ) + 1;
+
+    if ( rank > this.registers[index] ) this.registers[index] = (byte) rank;
+  }
+
+  public void merge( SiteSketch other )
+  {
+    if ( other.hitsPerSite != this.hitsPerSite ) throw new IllegalArgumentException( "Cannot merge sketches with different hitsPerSite" );
+
+    for ( int i = 0 ; i < M ; i++ )
+      {
+        if ( other.registers[i] > this.registers[i] ) this.registers[i] = other.registers[i];
+      }
+  }
+
+  /**
+   * Returns the estimated number of collapsed hits.
+   */
+  public long estimate( )
+  {
+    double sum   = 0;
+    int    zeros = 0;
+    for ( int i = 0 ; i < M ; i++ )
+      {
+        sum += 1.0 / ( 1L << this.registers[i] );
+
+        if ( this.registers[i] == 0 ) zeros++;
+      }
+
+    double alpha    = 0.7213 / ( 1 + 1.079 / M );
+    double estimate = alpha * M * M / sum;
+
+    // Linear counting is more accurate for small cardinalities.
+    if ( estimate <= 2.5 * M && zeros > 0 )
+      {
+        estimate = M * Math.log( (double) M / zeros );
+      }
+
+    return Math.round( estimate );
+  }
+
+  /**
+   * Returns a 64-bit hash of the lower-cased site, without creating
+   * the lower-cased String.  A <code>null</code> site hashes the same
+   * as "", as the collectors collapse them together.
+   */
+  public static long hash( String site )
+  {
+    // FNV-1a.
+    long h = 0xcbf29ce484222325L;
+
+    if ( site != null )
+      {
+        for ( int i = 0 ; i < site.length( ) ; i++ )
+          {
+            h ^= Character.toLowerCase( site.charAt( i ) );
+            h *= 0x100000001b3L;
+          }
+      }
+
+    return mix( h );
+  }
+
+  /**
+   * Finalizer from MurmurHash3, so that all the bits of the result
+   * depend on all the bits of the input.
+   */
+  static long mix( long h )
+  {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+
+}
@@ -16,12 +16,12 @@
 
 package org.archive.tnh;
 
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.net.URI;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.io.IOException;
-import java.io.File;
 
 import org.apache.lucene.index.IndexReader;
 
@@ -36,36 +36,286 @@ import org.apache.lucene.index.IndexReader;
  * Even though in practice we always store the URL in a field named
  * "url", a different name could be used by passing it to the
  * constructor.
+ *
+ * Since loading the stored URL is expensive, the sites of the
+ * documents seen by recent queries are remembered, in a small
+ * direct-mapped cache per reader: each docId maps to one slot, which
+ * holds the docId and an ordinal for the site.  A slot is simply
+ * overwritten by the next docId which maps to it, so the cache never
+ * grows beyond its fixed size, and it needs no locking.  The sites
+ * themselves are kept once each in a per-reader dictionary, and the
+ * whole per-reader cache is replaced with an empty one if that gets
+ * bigger than the slots.
  */
 public class UrlSiteCacheNoCache extends FieldCacheNoCache
 {
+  public static final int DEFAULT_CACHE_SIZE = 1 << 14;
+
+  final int cacheSize;
+
+  final Map<Object,ReaderCache> caches = new WeakHashMap<Object,ReaderCache>( );
+
+  // The cache for the most recently used reader, to skip the lookup
+  // in the map, and its lock, while collecting the same reader.
+  volatile ReaderCache last;
 
   public UrlSiteCacheNoCache( )
   {
     // Assume we want the "url" field.
-    super( "url" );
+    this( "url", DEFAULT_CACHE_SIZE );
   }
 
   public UrlSiteCacheNoCache( String fieldName )
+  {
+    this( fieldName, DEFAULT_CACHE_SIZE );
+  }
+
+  /**
+   * A <code>cacheSize</code> of 0 disables the cache.  Otherwise the
+   * number of slots per reader is the smaller of the
+   * <code>cacheSize</code> and the reader's maxDoc, rounded up to a
+   * power of 2.
+   */
+  public UrlSiteCacheNoCache( String fieldName, int cacheSize )
   {
     super( fieldName );
+
+    if ( cacheSize < 0 ) throw new IllegalArgumentException( "cacheSize must be >= 0" );
+
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * Per-reader cache of docId -> site ordinal.
+   */
+  static final class ReaderCache
+  {
+    final Object          key;
+    final int             mask;
+    final AtomicLongArray slots;
+
+    // Ordinal -> site, and site -> ordinal.  Only modified while
+    // holding the lock on this ReaderCache.  The sites array is
+    // replaced when it grows, and an ordinal is only stored in a slot
+    // once its site is in the array, so a reader which sees the
+    // ordinal in a slot also sees the site.
+    volatile String[]   sites  = new String[64];
+    Map<String,Integer> ords   = new HashMap<String,Integer>( );
+
+    ReaderCache( Object key, int size )
+    {
+      this.key   = key;
+      this.mask  = size - 1;
+      this.slots = new AtomicLongArray( size );
+    }
+
+    /**
+     * Returns the cached site for the docId, or <code>null</code> if
+     * it isn't cached.
+     */
+    String get( int docId )
+    {
+      long slot = this.slots.get( docId & this.mask );
+
+      // The docId is stored +1, so that an empty slot matches nothing.
+      if ( (int) ( slot >>> 32 ) != docId + 1 ) return null;
+
+      return this.sites[(int) slot];
+    }
+
+    /**
+     * Cache the site for the docId.  Returns false if the dictionary
+     * is full, in which case the ReaderCache should be replaced.
+     */
+    boolean put( int docId, String site )
+    {
+      int ord;
+      synchronized ( this )
+        {
+          Integer existing = this.ords.get( site );
+
+          if ( existing != null )
+            {
+              ord = existing;
+            }
+          else
+            {
+              // The slots are bounded, but the dictionary isn't, so
+              // give up once it's bigger than the slots.
+              if ( this.ords.size( ) > this.mask ) return false;
+
+              ord = this.ords.size( );
+
+              String[] sites = this.sites;
+              if ( ord == sites.length ) sites = Arrays.copyOf( sites, ord * 2 );
+              sites[ord] = site;
+              this.sites = sites;
+
+              this.ords.put( site, ord );
+            }
+        }
+
+      this.slots.set( docId & this.mask, ( (long) ( docId + 1 ) << 32 ) | ord );
+
+      return true;
+    }
+  }
+
+  private ReaderCache getReaderCache( IndexReader reader )
+  {
+    Object key = reader.getCoreCacheKey( );
+
+    ReaderCache cache = this.last;
+
+    if ( cache != null && cache.key == key ) return cache;
+
+    synchronized ( this.caches )
+      {
+        cache = this.caches.get( key );
+
+        if ( cache == null )
+          {
+            cache = newReaderCache( reader );
+
+            this.caches.put( key, cache );
+          }
+      }
+
+    this.last = cache;
+
+    return cache;
+  }
+
+  /**
+   * Replace a full ReaderCache with an empty one.  Threads still
+   * using the old one see it unchanged.
+   */
+  private void replaceReaderCache( IndexReader reader, ReaderCache full )
+  {
+    synchronized ( this.caches )
+      {
+        ReaderCache cache = this.caches.get( full.key );
+
+        if ( cache == full )
+          {
+            cache = newReaderCache( reader );
+
+            this.caches.put( full.key, cache );
+          }
+
+        this.last = cache;
+      }
+  }
+
+  private ReaderCache newReaderCache( IndexReader reader )
+  {
+    int size = Integer.highestOneBit( Math.max( 1, Math.min( this.cacheSize, reader.maxDoc( ) ) ) - 1 ) << 1;
+
+    return new ReaderCache( reader.getCoreCacheKey( ), Math.max( 1, size ) );
   }
 
   /**
-   * 
+   * Returns the host of the document's URL, or <code>null</code> if
+   * the URL has none.
    */
   public String getValue( IndexReader reader, int docBase, int docId )
     throws IOException
   {
-    String value = super.getValue( reader, docBase, docId );
+    if ( this.cacheSize == 0 ) return getHost( super.getValue( reader, docBase, docId ) );
+
+    ReaderCache cache = getReaderCache( reader );
+
+    String site = cache.get( docId );
+
+    if ( site != null ) return site;
+
+    site = getHost( super.getValue( reader, docBase, docId ) );
+
+    // Documents without a host are rare, don't bother caching them.
+    if ( site != null && ! cache.put( docId, site ) ) replaceReaderCache( reader, cache );
+
+    return site;
+  }
+
+  /**
+   * Returns the host of a hierarchical URL, as URI.getHost() would,
+   * but without parsing the whole URL or creating a URI.  Only the
+   * returned host itself is allocated.  Returns <code>null</code> if
+   * the URL has no authority, or is <code>null</code>.
+   *
+   * This is more lenient than URI: characters which are not legal in
+   * a URL are accepted rather than rejected.
+   */
+  public static String getHost( String url )
+  {
+    if ( url == null ) return null;
+
+    final int length = url.length( );
+
+    int start;
+    if ( url.startsWith( "//" ) )
+      {
+        // No scheme, just the authority.
+        start = 2;
+      }
+    else
+      {
+        // The scheme: a letter followed by letters, digits, '+', '-' or '.'
+        int i = 0;
+        for ( ; i < length ; i++ )
+          {
+            char c = url.charAt( i );
+
+            if ( c == ':' ) break;
+
+            boolean letter = ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' );
+
+            if ( ! letter && ( i == 0 || ! ( ( c >= '0' && c <= '9' ) || c == '+' || c == '-' || c == '.' ) ) ) return null;
+          }
+
+        if ( i == 0 || i + 2 >= length || url.charAt( i + 1 ) != '/' || url.charAt( i + 2 ) != '/' ) return null;
+
+        start = i + 3;
+      }
 
-    try
+    // The authority runs up to the path, query or fragment.
+    int end   = start;
+    for ( ; end < length ; end++ )
       {
-        String site = new URI( value ).getHost( );
+        char c = url.charAt( end );
 
-        return site;
+        if ( c == '/' || c == '?' || c == '#' ) break;
       }
-    catch ( Exception e ) { return ""; }
+
+    // Skip any userinfo.
+    int at = url.lastIndexOf( '@', end - 1 );
+    if ( at >= start ) start = at + 1;
+
+    if ( start < end && url.charAt( start ) == '[' )
+      {
+        // IPv6 literal, the brackets are part of the host.
+        int close = url.indexOf( ']', start );
+
+        if ( close < 0 || close >= end ) return null;
+
+        end = close + 1;
+      }
+    else
+      {
+        // Drop the port.
+        for ( int j = start ; j < end ; j++ )
+          {
+            if ( url.charAt( j ) == ':' )
+              {
+                end = j;
+                break;
+              }
+          }
+      }
+
+    if ( start == end ) return null;
+
+    return url.substring( start, end );
   }
 
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Warms up the caches of a Search by replaying a sample of queries
+ * through it: the operating system's page cache, the norms, and the
+ * site and facet caches.  Used when the indexes are first opened, and
+ * when they are re-opened, on the new Snapshot before it is swapped
+ * in.
+ *
+ * The queries are read from a file, one per line.  The "S:" lines
+ * logged by OpenSearchServlet can be used as they are; the query is
+ * taken from the end of the line.  Blank lines and lines starting
+ * with '#' are skipped.
+ *
+ * The queries are run on <code>numThreads</code> threads, until they
+ * have all been run or <code>timeBudget</code> milliseconds have
+ * passed, whichever comes first.
+ */
+public class Warmer
+{
+  public static final Logger LOG = Logger.getLogger( Warmer.class.getName() );
+
+  static final Pattern LOG_LINE = Pattern.compile( "S: \\d+ \\d+ \\d+ \\d+ (.*)$" );
+
+  final List<String> queries;
+  final int          numThreads;
+  final long         timeBudget;
+
+  final DefaultQueryTranslator translator = new DefaultQueryTranslator( );
+
+  public boolean  foldAccents   = true;
+  public int      maxHits       = 30;
+  public int      hitsPerSite   = 1;
+  public String[] facets        = QueryParameters.EMPTY_STRINGS;
+  public boolean  estimateTotal = true;
+
+  public Warmer( List<String> queries, int numThreads, long timeBudget )
+  {
+    if ( queries    == null ) throw new IllegalArgumentException( "queries cannot be null" );
+    if ( numThreads < 1     ) throw new IllegalArgumentException( "numThreads must be > 0" );
+    if ( timeBudget < 1     ) throw new IllegalArgumentException( "timeBudget must be > 0" );
+
+    this.queries    = queries;
+    this.numThreads = numThreads;
+    this.timeBudget = timeBudget;
+  }
+
+  /**
+   * Read the queries from a file, as described above.
+   */
+  public static List<String> read( String path )
+    throws IOException
+  {
+    List<String> queries = new ArrayList<String>( );
+
+    BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( path ), "UTF-8" ) );
+    try
+      {
+        for ( String line = in.readLine( ) ; line != null ; line = in.readLine( ) )
+          {
+            Matcher m = LOG_LINE.matcher( line );
+            if ( m.find( ) ) line = m.group( 1 );
+
+            line = line.trim( );
+
+            if ( line.length( ) == 0 || line.startsWith( "#" ) ) continue ;
+
+            queries.add( line );
+          }
+      }
+    finally
+      {
+        in.close( );
+      }
+
+    return queries;
+  }
+
+  /**
+   * Warm up the current Snapshot of the Search.
+   */
+  public int warm( Search search )
+  {
+    Search.Snapshot snapshot = search.acquire( );
+    try
+      {
+        return this.warm( search, snapshot );
+      }
+    finally
+      {
+        search.release( snapshot );
+      }
+  }
+
+  /**
+   * Run the queries against all the indexes of the Snapshot.  Returns
+   * the number of queries run.
+   */
+  public int warm( final Search search, final Search.Snapshot snapshot )
+  {
+    final long start    = System.currentTimeMillis( );
+    final long deadline = start + this.timeBudget;
+
+    final AtomicInteger next   = new AtomicInteger( );
+    final AtomicInteger run    = new AtomicInteger( );
+    final AtomicInteger failed = new AtomicInteger( );
+
+    ExecutorService executor = Executors.newFixedThreadPool( this.numThreads );
+    try
+      {
+        List<Future<?>> futures = new ArrayList<Future<?>>( this.numThreads );
+        for ( int i = 0 ; i < this.numThreads ; i++ )
+          {
+            futures.add( executor.submit( new Runnable( )
+              {
+                public void run( )
+                {
+                  for ( int q = next.getAndIncrement( ) ; q < queries.size( ) ; q = next.getAndIncrement( ) )
+                    {
+                      long remaining = deadline - System.currentTimeMillis( );
+
+                      if ( remaining <= 0 ) return ;
+
+                      try
+                        {
+                          Query query = translator.translate( queries.get( q ), foldAccents );
+
+                          Search.Options options = new Search.Options( );
+                          options.facets        = facets;
+                          options.estimateTotal = estimateTotal;
+                          options.timeout       = remaining;
+
+                          search.search( snapshot, QueryParameters.ALL_INDEXES, query, maxHits, hitsPerSite, options );
+
+                          run.incrementAndGet( );
+                        }
+                      catch ( Exception e )
+                        {
+                          failed.incrementAndGet( );
+
+                          LOG.fine( "Warm-up query failed: " + queries.get( q ) + ": " + e );
+                        }
+                    }
+                }
+              } ) );
+          }
+
+        for ( Future<?> future : futures )
+          {
+            future.get( );
+          }
+      }
+    catch ( InterruptedException ie )
+      {
+        Thread.currentThread( ).interrupt( );
+      }
+    catch ( ExecutionException ee )
+      {
+        LOG.warning( "Warm-up failed: " + ee.getCause( ) );
+      }
+    finally
+      {
+        executor.shutdownNow( );
+      }
+
+    LOG.info( "Warmed up with " + run.get( ) + " of " + this.queries.size( ) + " queries (" + failed.get( ) + " failed) in " + ( System.currentTimeMillis( ) - start ) + "ms" );
+
+    return run.get( );
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh.servlet;
+
+import java.io.*;
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import org.archive.tnh.*;
+
+/**
+ * Health check for load balancers.  Responds with 200 and "ready"
+ * once the OpenSearchServlet has opened the indexes and finished
+ * warming up, otherwise with 503, so that traffic is only routed to
+ * nodes which are ready for it.  A few counters follow the status
+ * line, for the curious.
+ */
+public class HealthServlet extends HttpServlet
+{
+  /**
+   * The ServletContext attribute, a Boolean, set by the
+   * OpenSearchServlet.
+   */
+  public static final String READY_KEY = "tnh.ready";
+
+  public void doGet( HttpServletRequest request, HttpServletResponse response )
+    throws ServletException, IOException
+  {
+    ServletContext context = this.getServletConfig( ).getServletContext( );
+
+    Search  search = (Search)  context.getAttribute( "tnh.search" );
+    Boolean ready  = (Boolean) context.getAttribute( READY_KEY );
+
+    String status;
+    if      ( search == null                 ) status = "starting";
+    else if ( ! Boolean.TRUE.equals( ready ) ) status = "warming up";
+    else                                       status = "ready";
+
+    response.setStatus( "ready".equals( status ) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+    response.setContentType( "text/plain" );
+    response.setCharacterEncoding( "UTF-8" );
+    response.setHeader( "Cache-Control", "no-cache" );
+
+    PrintWriter out = response.getWriter( );
+    out.println( status );
+
+    if ( search != null )
+      {
+        // Not counting the "" for all of them, unless it's the only one.
+        out.println( "indexes: " + Math.max( search.getIndexNames( ).size( ) - 1, 1 ) );
+
+        ResultCache cache = search.getResultCache( );
+        if ( cache != null )
+          {
+            out.println( "resultCache: " + cache.size( ) + " entries, " + cache.getHitCount( ) + " hits, " + cache.getMissCount( ) + " misses" );
+          }
+      }
+
+    out.flush( );
+  }
+
+}
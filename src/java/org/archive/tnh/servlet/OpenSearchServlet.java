@@ -18,6 +18,7 @@ package org.archive.tnh.servlet;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 import java.util.logging.Logger;
 import javax.servlet.*;
@@ -29,6 +30,7 @@ import org.jdom.output.XMLOutputter;
 import org.apache.lucene.analysis.*;
 import org.apache.lucene.document.CompressionTools;
 import org.apache.lucene.search.*;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.highlight.*;
 
 import org.archive.tnh.*;
@@ -49,9 +51,36 @@ public class OpenSearchServlet extends HttpServlet
   public String  segmentPath;
   public boolean foldAccents;
   public boolean explain;
+  public boolean estimateTotal;
+  public String  siteCache;
+  public boolean writeColumns;
+  public int     searchThreads;
+  public int     parallelSearchThreads;
+  public int     searcherCacheSize;
+  public int     resultCacheSize;
+  public int     resultCacheMB;
+  public int     filterCacheSize;
+  public int     timeout;
+  public int     timeoutMax;
+  public int     requestThreads;
+  public int     requestQueueSize;
+  public int     retryAfter;
+  public int     requestWaitMargin;
+  public int     openThreads;
+  public int     reopenInterval;
+  public String  warmQueries;
+  public int     warmThreads;
+  public int     warmTime;
+  public Set<String> facets;
+  public Set<String> collapseFields;
+  public Set<String> sortFields;
+  public int     facetsMax;
   public Search  searcher;
+  public ScheduledExecutorService reopener;
+  public Warmer  warmer;
   
   public DefaultQueryTranslator translator;
+  public FilterCache filterCache;
   public Segments segments;
   
   public void init( ServletConfig config )
@@ -68,15 +97,151 @@ public class OpenSearchServlet extends HttpServlet
 
     this.foldAccents    = ServletHelper.getInitParameter( config, "foldAccents",    Boolean.TRUE );
     this.explain        = ServletHelper.getInitParameter( config, "explain",        Boolean.FALSE );
+    this.estimateTotal  = ServletHelper.getInitParameter( config, "estimateTotal",  Boolean.TRUE );
+    this.siteCache      = ServletHelper.getInitParameter( config, "siteCache",      "lucene" );
+    this.writeColumns   = ServletHelper.getInitParameter( config, "writeColumns",   Boolean.TRUE );
+    this.searchThreads  = ServletHelper.getInitParameter( config, "searchThreads",  0, 0 );
+    this.parallelSearchThreads = ServletHelper.getInitParameter( config, "parallelSearchThreads", 0, 0 );
+    this.searcherCacheSize     = ServletHelper.getInitParameter( config, "searcherCacheSize", Search.DEFAULT_MULTI_SEARCHER_CACHE_SIZE, 0 );
+    this.resultCacheSize       = ServletHelper.getInitParameter( config, "resultCacheSize", ResultCache.DEFAULT_MAX_ENTRIES, 0 );
+    this.resultCacheMB         = ServletHelper.getInitParameter( config, "resultCacheMB", ResultCache.DEFAULT_MAX_BYTES >> 20, 1 );
+    this.filterCacheSize       = ServletHelper.getInitParameter( config, "filterCacheSize", FilterCache.DEFAULT_MAX_FILTERS, 0 );
+    this.facetsMax      = ServletHelper.getInitParameter( config, "facetsMax",      10, 1 );
+    this.timeout        = ServletHelper.getInitParameter( config, "timeout",        0, 0 );
+    this.timeoutMax     = ServletHelper.getInitParameter( config, "timeoutMax",     0, 0 );
+    this.requestThreads   = ServletHelper.getInitParameter( config, "requestThreads",   0, 0 );
+    this.requestQueueSize = ServletHelper.getInitParameter( config, "requestQueueSize", 16, 1 );
+    this.retryAfter       = ServletHelper.getInitParameter( config, "retryAfter",       1, 0 );
+    this.requestWaitMargin = ServletHelper.getInitParameter( config, "requestWaitMargin", 1000, 0 );
+    this.openThreads      = ServletHelper.getInitParameter( config, "openThreads",      IndexOpener.DEFAULT_OPEN_THREADS, 1 );
+    this.reopenInterval   = ServletHelper.getInitParameter( config, "reopenInterval",   0, 0 );
+    this.warmQueries      = ServletHelper.getInitParameter( config, "warmQueries",      "" );
+    this.warmThreads      = ServletHelper.getInitParameter( config, "warmThreads",      4, 1 );
+    this.warmTime         = ServletHelper.getInitParameter( config, "warmTime",         60, 1 );
+
+    // The fields which clients may request facet counts for.
+    this.facets = new HashSet<String>( Arrays.asList( ServletHelper.getInitParameter( config, "facets", "type collection date" ).trim( ).split( "[\\s,]+" ) ) );
+
+    // The fields which clients may collapse on, within each site.
+    this.collapseFields = new HashSet<String>( Arrays.asList( ServletHelper.getInitParameter( config, "collapseFields", "digest" ).trim( ).split( "[\\s,]+" ) ) );
+
+    // The numeric fields which clients may sort on.
+    this.sortFields = new HashSet<String>( Arrays.asList( ServletHelper.getInitParameter( config, "sortFields", "date" ).trim( ).split( "[\\s,]+" ) ) );
 
     try
       {
-        this.searcher = new Search( IndexOpener.open( indexPath, indexDivisor ) );
+        FieldCacheMapped columns = null;
+        if ( "mapped".equals( this.siteCache ) )
+          {
+            // The column files are mapped as the indexes are opened,
+            // and written first if they are missing or out of date.
+            columns = new FieldCacheMapped( "site", this.writeColumns );
+
+            this.searcher = new Search( IndexOpener.open( indexPath, indexDivisor, columns, this.openThreads ) );
+            this.searcher.setSiteCache( columns );
+          }
+        else
+          {
+            this.searcher = new Search( IndexOpener.open( indexPath, indexDivisor, null, this.openThreads ) );
+          }
+
+        if ( "ordinals".equals( this.siteCache ) )
+          {
+            this.searcher.setSiteCache( new FieldCacheOrdinals( "site" ) );
+          }
+        else if ( "global".equals( this.siteCache ) )
+          {
+            FieldCacheGlobal global = new FieldCacheGlobal( "site" );
+
+            global.load( IndexOpener.getReaders( this.searcher.searchers.values( ) ) );
+
+            this.searcher.setSiteCache( global );
+          }
+        else if ( "preallocated".equals( this.siteCache ) )
+          {
+            Searcher all = this.searcher.searchers.get( "" );
+
+            FieldCachePreAllocated preallocated = new FieldCachePreAllocated( "site", IndexOpener.getReaders( this.searcher.searchers.values( ) ).size( ), all.maxDoc( ) );
+
+            preallocated.warm( all, Runtime.getRuntime( ).availableProcessors( ) );
+
+            this.searcher.setSiteCache( preallocated );
+          }
+        else if ( ! "mapped".equals( this.siteCache ) && ! "lucene".equals( this.siteCache ) )
+          {
+            throw new ServletException( "Error: unknown value for 'siteCache': " + this.siteCache );
+          }
+
+        // Search the sub-indexes concurrently, on a fixed-size pool
+        // shared by all requests.
+        if ( this.searchThreads > 0 )
+          {
+            this.searcher.setExecutor( Executors.newFixedThreadPool( this.searchThreads ) );
+          }
+
+        // Look up the document frequencies in the sub-indexes in
+        // parallel, on another pool shared by all requests.
+        if ( this.parallelSearchThreads > 0 )
+          {
+            this.searcher.setParallelExecutor( Executors.newFixedThreadPool( this.parallelSearchThreads ) );
+          }
+
+        this.searcher.setMultiSearcherCacheSize( this.searcherCacheSize );
+
+        // Run the searches on a pool of their own, with a bounded
+        // queue, rather than on the container's threads, so that a
+        // burst of expensive queries is turned away rather than
+        // tying up every connector.
+        if ( this.requestThreads > 0 )
+          {
+            this.searcher.setSearchExecutor( Search.newBoundedExecutor( this.requestThreads, this.requestQueueSize ) );
+          }
+
+        // Keep the results of recent searches, so that the popular
+        // queries, and the next pages of a query, don't have to be
+        // searched again.
+        if ( this.resultCacheSize > 0 )
+          {
+            this.searcher.setResultCache( new ResultCache( this.resultCacheSize, (long) this.resultCacheMB << 20 ) );
+          }
 
         if ( this.segmentPath.length() != 0 )
           {
             this.segments = new Segments( this.segmentPath );
           }
+
+        // Replay a sample of queries to warm up the caches, both now
+        // and whenever indexes are re-opened.
+        if ( this.warmQueries.length( ) != 0 )
+          {
+            this.warmer = new Warmer( Warmer.read( this.warmQueries ), this.warmThreads, this.warmTime * 1000L );
+            this.warmer.foldAccents   = this.foldAccents;
+            this.warmer.maxHits       = this.hitsPerPage * 3;
+            this.warmer.hitsPerSite   = this.hitsPerSite;
+            this.warmer.facets        = this.facets.toArray( new String[this.facets.size()] );
+            this.warmer.estimateTotal = this.estimateTotal;
+          }
+
+        // Periodically re-open the indexes which have changed, pick
+        // up the collections which have been added or removed, and
+        // swap in the new searchers without a restart.  The
+        // preallocated cache has a fixed slot for each reader, so
+        // there is no room for new ones.
+        if ( this.reopenInterval > 0 )
+          {
+            if ( "preallocated".equals( this.siteCache ) )
+              {
+                LOG.warning( "Indexes cannot be re-opened with siteCache=preallocated, ignoring reopenInterval" );
+              }
+            else
+              {
+                IndexReopener reopener = new IndexReopener( this.searcher, this.indexPath, this.indexDivisor, columns, this.openThreads );
+                reopener.setWarmer( this.warmer );
+
+                this.reopener = Executors.newSingleThreadScheduledExecutor( );
+                this.reopener.scheduleWithFixedDelay( reopener, this.reopenInterval, this.reopenInterval, TimeUnit.SECONDS );
+              }
+          }
       }
     catch ( IOException ioe )
       {
@@ -85,12 +250,69 @@ public class OpenSearchServlet extends HttpServlet
     
     config.getServletContext().setAttribute( "tnh.search", this.searcher );
 
+    // Searches are served during the warm-up, but the HealthServlet
+    // reports not ready until it is done.
+    final ServletContext context = config.getServletContext( );
+    if ( this.warmer != null )
+      {
+        context.setAttribute( HealthServlet.READY_KEY, Boolean.FALSE );
+
+        Thread warmup = new Thread( new Runnable( )
+          {
+            public void run( )
+            {
+              try
+                {
+                  warmer.warm( searcher );
+                }
+              finally
+                {
+                  context.setAttribute( HealthServlet.READY_KEY, Boolean.TRUE );
+                }
+            }
+          }, "tnh-warmup" );
+        warmup.setDaemon( true );
+        warmup.start( );
+      }
+    else
+      {
+        context.setAttribute( HealthServlet.READY_KEY, Boolean.TRUE );
+      }
+
     this.translator = new DefaultQueryTranslator( );
+
+    if ( this.filterCacheSize > 0 )
+      {
+        this.filterCache = new FilterCache( this.translator, this.filterCacheSize );
+      }
+  }
+
+  public void destroy( )
+  {
+    if ( this.reopener != null )
+      {
+        this.reopener.shutdown( );
+      }
+    if ( this.searcher != null && this.searcher.getExecutor( ) != null )
+      {
+        this.searcher.getExecutor( ).shutdown( );
+      }
+    if ( this.searcher != null && this.searcher.getParallelExecutor( ) != null )
+      {
+        this.searcher.getParallelExecutor( ).shutdown( );
+      }
+    if ( this.searcher != null && this.searcher.getSearchExecutor( ) != null )
+      {
+        this.searcher.getSearchExecutor( ).shutdown( );
+      }
   }
 
   public void doGet( HttpServletRequest request, HttpServletResponse response )
     throws ServletException, IOException
   {
+    // Hold on to the searchers until the documents of the hits have
+    // been fetched, in case the indexes are re-opened meanwhile.
+    Search.Snapshot snapshot = this.searcher.acquire( );
     try
       {
         long responseTime = System.nanoTime( );
@@ -103,10 +325,13 @@ public class OpenSearchServlet extends HttpServlet
 
         BooleanQuery q = this.translator.translate( p.query, this.foldAccents );
 
-        this.translator.addFilterGroup( q, "site", p.sites );
-        this.translator.addFilterGroup( q, "type", p.types );
-        this.translator.addFilterGroup( q, "collection", p.collections );
-        this.translator.addFilterGroup( q, "date", p.dates );
+        // Restrict the search with cached filters if we can, otherwise
+        // with extra clauses in the query.
+        List<Filter> filters = new ArrayList<Filter>( 4 );
+        addFilter( q, filters, "site", p.sites );
+        addFilter( q, filters, "type", p.types );
+        addFilter( q, filters, "collection", p.collections );
+        addFilter( q, filters, "date", p.dates );
 
         long parseQueryTime = System.nanoTime();
 
@@ -115,13 +340,52 @@ public class OpenSearchServlet extends HttpServlet
             if ( p.excludes.length > 0 )
               {
                 // If there are indexes to exclude, exclude them.
-                p.indexNames = removeExcludes( p.excludes );
+                p.indexNames = removeExcludes( snapshot, p.excludes );
               }
           }
         else
           {
             // There are explicitly named indexes.  Weed out any unknown names.
-            p.indexNames = removeUnknownIndexNames( p.indexNames );
+            p.indexNames = removeUnknownIndexNames( snapshot, p.indexNames );
+          }
+
+        // If the request continues from a cursor, only the hits after
+        // it are collected and the page starts at the first of them.
+        // Otherwise, we collect all the hits up to the requested page,
+        // plus a few more pages' worth to estimate the total.
+        Search.Options options = new Search.Options( );
+        options.filter = FilterCache.and( filters );
+        options.facets = removeUnknownFacets( p.facets );
+        options.estimateTotal = this.estimateTotal;
+        setCollapse( options, p.collapse );
+        setSort( options, p.sort );
+        setTimeout( options, p.timeout );
+
+        if ( options.sortField != null && ( options.collapseFields.length > 0 || p.after.length() != 0 ) )
+          {
+            response.sendError( HttpServletResponse.SC_BAD_REQUEST, "Sorting cannot be combined with further collapse fields or a cursor" );
+
+            return ;
+          }
+
+        int offset  = p.start;
+        int maxHits = p.start + (p.hitsPerPage*3);
+        if ( p.after.length() != 0 )
+          {
+            try
+              {
+                options.after = Cursor.decode( p.after );
+              }
+            catch ( IllegalArgumentException iae )
+              {
+                response.sendError( HttpServletResponse.SC_BAD_REQUEST, iae.getMessage( ) );
+
+                return ;
+              }
+
+            offset  = 0;
+            maxHits = p.hitsPerPage + 1;
+            p.start = options.after.position;
           }
 
         Search.Result result;
@@ -130,36 +394,109 @@ public class OpenSearchServlet extends HttpServlet
             result = new Search.Result( );
             result.hits = new Hit[0];
           }
+        else if ( this.searcher.getSearchExecutor( ) != null )
+          {
+            Future<Search.Result> future;
+            try
+              {
+                future = this.searcher.searchAsync( snapshot, p.indexNames, q, maxHits, p.hitsPerSite, options );
+              }
+            catch ( RejectedExecutionException ree )
+              {
+                LOG.warning( "Too many searches, rejected: " + p.query );
+
+                sendBusy( response );
+
+                return ;
+              }
+
+            // Don't wait on the search any longer than its time budget,
+            // plus a margin for the time spent in the queue and wrapping
+            // up, so that a slow search doesn't hold on to this thread.
+            // Without a budget, wait until it's done or we're interrupted.
+            try
+              {
+                result = options.timeout > 0 ? future.get( options.timeout + this.requestWaitMargin, TimeUnit.MILLISECONDS ) : future.get( );
+              }
+            catch ( TimeoutException te )
+              {
+                future.cancel( true );
+
+                LOG.warning( "Search took too long, cancelled: " + p.query );
+
+                sendBusy( response );
+
+                return ;
+              }
+            catch ( InterruptedException ie )
+              {
+                future.cancel( true );
+
+                Thread.currentThread( ).interrupt( );
+
+                LOG.warning( "Interrupted, search cancelled: " + p.query );
+
+                sendBusy( response );
+
+                return ;
+              }
+            catch ( ExecutionException ee )
+              {
+                Throwable cause = ee.getCause( );
+                if ( cause instanceof Exception ) throw (Exception) cause;
+                throw ee;
+              }
+          }
         else
           {
-            result = this.searcher.search( p.indexNames, q, p.start + (p.hitsPerPage*3), p.hitsPerSite );
+            result = this.searcher.search( snapshot, p.indexNames, q, maxHits, p.hitsPerSite, options );
           }
 
         long executeQueryTime = System.nanoTime();
 
         // The 'end' is usually just the end of the current page
-        // (start+hitsPerPage); but if we are on the last page
+        // (offset+hitsPerPage); but if we are on the last page
         // of de-duped results, then the end is hits.getLength().
-        int end = Math.min( result.hits.length, p.start + p.hitsPerPage );
+        int end = Math.min( result.hits.length, offset + p.hitsPerPage );
         
-        // The length is usually just (end-start), unless the start
-        // position is past the end of the results -- which is common when
-        // de-duping.  The user could easily jump past the true end of the
-        // de-dup'd results.  If the start is past the end, we use a
-        // length of '0' to produce an empty results page.
-        int length = Math.max( end-p.start, 0 );
-        
-        // Usually, the total results is the total number of non-de-duped
+        // Usually, the total results is the estimated number of de-duped
+        // results, or failing that, the total number of non-de-duped
         // results.  Howerver, if we are on last page of de-duped results,
-        // then we know our de-dup'd total is result.hits.length.
-        long totalResults = result.hits.length < (p.start+p.hitsPerPage) ? result.hits.length : result.numRawHits; 
+        // or past it, then we know our de-dup'd total is the number of
+        // hits collected, plus those on earlier pages if we continued
+        // from a cursor.
+        long totalResults = result.hits.length <= (offset+p.hitsPerPage) ? p.start - offset + result.hits.length
+          : result.estimatedNumHits >= 0 ? result.estimatedNumHits : result.numRawHits; 
 
         Document doc = new Document( );
 
         Element channel = OpenSearchHelper.startResponse( doc, p, request, totalResults );
+
+        if ( result.facets != null )
+          {
+            OpenSearchHelper.addFacets( channel, result.facets, this.facetsMax );
+          }
+
+        if ( result.timedOut )
+          {
+            JDOMHelper.add( channel, OpenSearchHelper.NS_ARCHIVE, "timedOut", "true" );
+          }
+
+        // If there are more hits, give the client a cursor to fetch
+        // the next page without re-collecting this one.  Without a
+        // cursor, the hits before this page count against the
+        // hitsPerSite too.
+        if ( end > offset && result.hits.length > end && options.sortField == null )
+          {
+            Cursor next = options.after != null
+              ? Cursor.after( options.after, result.hits, offset, end )
+              : Cursor.after( null, result.hits, 0, end );
+
+            JDOMHelper.add( channel, OpenSearchHelper.NS_ARCHIVE, "after", next.encode( ) );
+          }
         
         // Add hits to XML Document
-        for ( int i = p.start ; i < end ; i++ )
+        for ( int i = offset ; i < end ; i++ )
           {
             org.apache.lucene.document.Document hit = result.searcher.doc( result.hits[i].id );
             
@@ -185,7 +522,7 @@ public class OpenSearchServlet extends HttpServlet
             JDOMHelper.add( item, OpenSearchHelper.NS_ARCHIVE, "boost",      hit.get( "boost"      ) );
             JDOMHelper.add( item, OpenSearchHelper.NS_ARCHIVE, "collection", hit.get( "collection" ) );
 
-            String indexName = this.searcher.resolveIndexName( result.searcher, result.hits[i].id );
+            String indexName = result.hits[i].indexName;
             JDOMHelper.add( item, OpenSearchHelper.NS_ARCHIVE, "index",      indexName );
 
             for ( String date : hit.getValues( "date" ) )
@@ -242,37 +579,176 @@ public class OpenSearchServlet extends HttpServlet
       {
         throw new ServletException( e );
       }
+    finally
+      {
+        this.searcher.release( snapshot );
+      }
   }
 
-  public String[] removeUnknownIndexNames( String[] names )
+  /**
+   * Returns those of the given names which are in the Snapshot the
+   * search will run on, which may differ from the current searchers
+   * if collections have since been added or removed.
+   */
+  public String[] removeUnknownIndexNames( Search.Snapshot snapshot, String[] names )
   {
     Set<String> known = new HashSet( names.length );
 
     for ( int i = 0; i < names.length ; i++ )
       {
-        if ( this.searcher.hasIndex( names[i] ) ) known.add( names[i] );
+        if ( snapshot.getSearchers( ).containsKey( names[i] ) ) known.add( names[i] );
+      }
+
+    return known.toArray( new String[known.size()] );
+  }
+
+  public String[] removeUnknownFacets( String[] names )
+  {
+    Set<String> known = new LinkedHashSet<String>( names.length );
+
+    for ( int i = 0; i < names.length ; i++ )
+      {
+        if ( this.facets.contains( names[i] ) ) known.add( names[i] );
       }
 
     return known.toArray( new String[known.size()] );
   }
 
-  public String[] removeExcludes( String[] excludes )
+  /**
+   * Restrict the search to the given values of the field with a
+   * cached Filter, or with a group of query clauses if the
+   * filterCacheSize is 0.
+   */
+  public void addFilter( BooleanQuery q, List<Filter> filters, String field, String[] values )
+  {
+    if ( this.filterCache == null )
+      {
+        this.translator.addFilterGroup( q, field, values );
+      }
+    else
+      {
+        Filter filter = this.filterCache.getFilter( field, values );
+
+        if ( filter != null ) filters.add( filter );
+      }
+  }
+
+  /**
+   * Tell the client to come back later, when we are less busy.
+   */
+  public void sendBusy( HttpServletResponse response )
+    throws IOException
+  {
+    response.setHeader( "Retry-After", Integer.toString( this.retryAfter ) );
+    response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many searches, try again later" );
+  }
+
+  /**
+   * Set the time budget of the search, in milliseconds, which the
+   * request can override, but never beyond the timeoutMax.  0 for
+   * no limit.
+   */
+  public void setTimeout( Search.Options options, int timeout )
+  {
+    options.timeout = timeout >= 0 ? timeout : this.timeout;
+
+    if ( this.timeoutMax > 0 && ( options.timeout == 0 || options.timeout > this.timeoutMax ) )
+      {
+        options.timeout = this.timeoutMax;
+      }
+  }
+
+  /**
+   * Each collapse parameter is a field name, optionally followed by
+   * a colon and the number of hits to keep per value, which defaults
+   * to 1.  Unknown fields and malformed limits are ignored.
+   */
+  public void setCollapse( Search.Options options, String[] collapse )
+  {
+    List<String>  fields = new ArrayList<String>( collapse.length );
+    List<Integer> limits = new ArrayList<Integer>( collapse.length );
+
+    for ( String c : collapse )
+      {
+        int colon = c.indexOf( ':' );
+
+        String field = colon < 0 ? c : c.substring( 0, colon );
+        int    limit = 1;
+
+        if ( ! this.collapseFields.contains( field ) || fields.contains( field ) ) continue ;
+
+        if ( colon >= 0 )
+          {
+            try
+              {
+                limit = Integer.parseInt( c.substring( colon + 1 ) );
+              }
+            catch ( NumberFormatException nfe )
+              {
+                continue ;
+              }
+
+            if ( limit < 0 ) continue ;
+          }
+
+        fields.add( field );
+        limits.add( limit );
+      }
+
+    options.collapseFields = fields.toArray( new String[fields.size()] );
+    options.collapseLimits = new int[limits.size()];
+    for ( int i = 0 ; i < options.collapseLimits.length ; i++ )
+      {
+        options.collapseLimits[i] = limits.get( i );
+      }
+  }
+
+  /**
+   * The sort parameter is a field name, optionally followed by
+   * ":asc" or ":desc", the default being descending, e.g. newest
+   * first.  An unknown field or direction is ignored, leaving the
+   * hits ranked by score.
+   */
+  public void setSort( Search.Options options, String sort )
+  {
+    if ( sort.length() == 0 ) return ;
+
+    int colon = sort.indexOf( ':' );
+
+    String field     = colon < 0 ? sort  : sort.substring( 0, colon );
+    String direction = colon < 0 ? "desc" : sort.substring( colon + 1 );
+
+    if ( ! this.sortFields.contains( field ) ) return ;
+    if ( ! "asc".equals( direction ) && ! "desc".equals( direction ) ) return ;
+
+    options.sortField     = field;
+    options.sortAscending = "asc".equals( direction );
+  }
+
+  public String[] removeExcludes( Search.Snapshot snapshot, String[] excludes )
   {
     // No explicit indexes requested, but if there are
     // excludes, then create a new list of indexes with all
-    // the names except those to be excluded.
-    Set<String> names = new HashSet<String>( this.searcher.getIndexNames( ) );
-    
-    // First, remove the magic "all indexes" name.
-    names.remove( "" );
+    // the names except those to be excluded.  The names are sorted,
+    // as Search.buildMultiSearcher() would anyway.  They are taken
+    // from the Snapshot the search runs on, since collections can
+    // come and go.
+    Set<String> all = new TreeSet<String>( snapshot.getSearchers( ).keySet( ) );
+    all.remove( "" );
+
+    List<String> names = new ArrayList<String>( all.size( ) );
     
-    // Then, remove all the names in the exclude list.
-    for ( int i = 0 ; i < excludes.length ; i++ )
+    for ( String name : all )
       {
-        names.remove( excludes[i] );
+        boolean excluded = false;
+        for ( int i = 0 ; ! excluded && i < excludes.length ; i++ )
+          {
+            excluded = name.equals( excludes[i] );
+          }
+
+        if ( ! excluded ) names.add( name );
       }
     
-    // Lastly, keep the new list of index names.
     return names.toArray( new String[names.size()] );
   }
 
@@ -290,6 +766,11 @@ public class OpenSearchServlet extends HttpServlet
     p.collections= ServletHelper.getParam( request, "c",  QueryParameters.EMPTY_STRINGS );
     p.types      = ServletHelper.getParam( request, "t",  QueryParameters.EMPTY_STRINGS );
     p.dates      = ServletHelper.getParam( request, "d",  QueryParameters.EMPTY_STRINGS );
+    p.after      = ServletHelper.getParam( request, "a",  "" );
+    p.facets     = ServletHelper.getParam( request, "f",  QueryParameters.EMPTY_STRINGS );
+    p.collapse   = ServletHelper.getParam( request, "k",  QueryParameters.EMPTY_STRINGS );
+    p.sort       = ServletHelper.getParam( request, "o",  "" );
+    p.timeout    = ServletHelper.getParam( request, "l",  -1 );
 
     if ( p.start > this.positionMax )
       {
@@ -51,6 +51,11 @@ public class QueryParametersFilter implements Filter
     p.excludes   = ServletHelper.getParam( request, "x", QueryParameters.EMPTY_STRINGS );
     p.collections= ServletHelper.getParam( request, "c", QueryParameters.EMPTY_STRINGS );
     p.types      = ServletHelper.getParam( request, "t", QueryParameters.EMPTY_STRINGS );
+    p.after      = ServletHelper.getParam( request, "a", "" );
+    p.facets     = ServletHelper.getParam( request, "f", QueryParameters.EMPTY_STRINGS );
+    p.collapse   = ServletHelper.getParam( request, "k", QueryParameters.EMPTY_STRINGS );
+    p.sort       = ServletHelper.getParam( request, "o", "" );
+    p.timeout    = ServletHelper.getParam( request, "l", -1 );
     
     request.setAttribute( OpenSearchHelper.PARAMS_KEY, p );
 
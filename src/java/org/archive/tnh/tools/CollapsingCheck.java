@@ -0,0 +1,702 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh.tools;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import org.archive.tnh.*;
+
+/**
+ * Randomized equivalence check of the collapsing collectors.
+ *
+ * Feeds the same randomly generated stream of (docId, score, site)
+ * hits through the original CollapsingCollector and each of the
+ * alternative implementations, then verifies that they all return
+ * the same Hits, in the same order, as a simple reference
+ * implementation.  The alternatives are also paged through with a
+ * Cursor, which must give the same Hits as collecting them all at
+ * once.
+ *
+ * No index is needed: the sites come from a FieldCache backed by an
+ * array, and the scores from a Scorer which returns whatever score
+ * it was last given.  The random stream is split across several
+ * "readers" with increasing docBases, as a Searcher would do.
+ */
+public class CollapsingCheck
+{
+  /**
+   * FieldCache backed by an array of sites, indexed by docBase+docId.
+   */
+  public static class ArrayFieldCache implements FieldCache
+  {
+    final String[] sites;
+
+    public ArrayFieldCache( String[] sites )
+    {
+      this.sites = sites;
+    }
+
+    public String getValue( IndexReader reader, int docBase, int docId )
+    {
+      return this.sites[docBase + docId];
+    }
+  }
+
+  /**
+   * OrdinalFieldCache backed by an array of sites.  Like a real
+   * index's segments, each reader gets its own dictionary, with the
+   * ordinals in a random order and a distinct ordinal space, so that
+   * the same site has different ordinals in different readers.
+   */
+  public static class ArrayOrdinalFieldCache extends ArrayFieldCache implements OrdinalFieldCache
+  {
+    final Map<Integer,Ordinals> readers = new HashMap<Integer,Ordinals>( );
+
+    public ArrayOrdinalFieldCache( String[] sites, List<int[]> readers, Random random )
+    {
+      super( sites );
+
+      for ( int[] r : readers )
+        {
+          int docBase = r[0], length = r[1];
+
+          // Sites are compared case-insensitively.
+          Set<String> set = new LinkedHashSet<String>( );
+          for ( int i = 0 ; i < length ; i++ ) set.add( sites[docBase + i].toLowerCase( ) );
+
+          List<String> distinct = new ArrayList<String>( set );
+          Collections.shuffle( distinct, random );
+
+          Map<String,Integer> m = new HashMap<String,Integer>( );
+          final String[] values = new String[distinct.size() + 1];
+          for ( int i = 0 ; i < distinct.size( ) ; i++ )
+            {
+              values[i + 1] = distinct.get( i );
+              m.put( distinct.get( i ), i + 1 );
+            }
+
+          final int[] ords = new int[length];
+          for ( int i = 0 ; i < length ; i++ )
+            {
+              ords[i] = m.get( sites[docBase + i].toLowerCase( ) );
+            }
+
+          final Object space = new Object( );
+          this.readers.put( docBase, new Ordinals( )
+            {
+              public int    getOrd( int docId ) { return ords[docId]; }
+              public String getValue( int ord ) { return values[ord]; }
+              public int    size( )             { return values.length; }
+              public Object getOrdinalSpace( )  { return space; }
+            } );
+        }
+    }
+
+    public Ordinals getOrdinals( IndexReader reader, int docBase )
+    {
+      return this.readers.get( docBase );
+    }
+  }
+
+  /**
+   * FieldCacheLong backed by an array of values, indexed by
+   * docBase+docId.
+   */
+  public static class ArrayFieldCacheLong extends FieldCacheLong
+  {
+    final long[] values;
+
+    public ArrayFieldCacheLong( long[] values )
+    {
+      super( "value", true );
+
+      this.values = values;
+    }
+
+    public long[] getValues( IndexReader reader, int docBase )
+    {
+      return Arrays.copyOfRange( this.values, docBase, this.values.length );
+    }
+  }
+
+  /**
+   * Scorer which simply returns the score it was given.
+   */
+  public static class FixedScorer extends Scorer
+  {
+    float score;
+    int   doc = -1;
+
+    public FixedScorer( )
+    {
+      super( (Weight) null );
+    }
+
+    public float score( ) { return this.score; }
+    public int   docID( ) { return this.doc;   }
+    public int   nextDoc( ) { return NO_MORE_DOCS; }
+    public int   advance( int target ) { return NO_MORE_DOCS; }
+  }
+
+  /**
+   * Creates a fresh collector for each page.
+   */
+  public interface CollectorFactory
+  {
+    public AbstractCollapsingCollector create( int maxHits );
+  }
+
+  public static void usage( )
+  {
+    System.err.println( "usage: CollapsingCheck [options]" );
+    System.err.println( );
+    System.err.println( "  Options:" );
+    System.err.println( "    -h, --help          this help page" );
+    System.err.println( "    -r                  # of random runs, default 1000" );
+    System.err.println( "    -seed               random seed, default current time" );
+    System.err.println( "" );
+  }
+
+  public static void main( String args[] )
+    throws Exception
+  {
+    int  runs = 1000;
+    long seed = System.currentTimeMillis( );
+
+    for ( int i = 0 ; i < args.length ; i++ )
+      {
+        if ( args[i].equalsIgnoreCase( "-h" ) || args[i].equalsIgnoreCase( "-help" ) || args[i].equalsIgnoreCase( "--help" ) )
+          {
+            usage( );
+
+            System.exit( 1 );
+          }
+        else if ( args[i].equalsIgnoreCase( "-r" ) )
+          {
+            runs = TestSearch.getInt( args[++i], "-r", 1 );
+          }
+        else if ( args[i].equalsIgnoreCase( "-seed" ) )
+          {
+            seed = Long.parseLong( args[++i] );
+          }
+        else
+          {
+            usage( );
+
+            System.exit( 1 );
+          }
+      }
+
+    System.out.println( "seed = " + seed );
+
+    Random random = new Random( seed );
+
+    int failures = 0;
+    for ( int run = 0 ; run < runs ; run++ )
+      {
+        boolean ok = check( random, run );
+
+        ok &= checkMulti( random, run );
+
+        ok &= checkSorted( random, run );
+
+        if ( ! ok ) failures++;
+      }
+
+    System.out.println( "runs = " + runs + " failures = " + failures );
+
+    if ( failures > 0 ) System.exit( 1 );
+  }
+
+  /**
+   * Generate a random stream of hits, feed it through all the
+   * collectors and compare the results against those of the
+   * original CollapsingCollector.
+   */
+  public static boolean check( Random random, int run )
+    throws IOException
+  {
+    int numDocs     = random.nextInt( 5000 );
+    int numSites    = 1 + random.nextInt( 200 );
+    int maxHits     = 1 + random.nextInt( 300 );
+    int hitsPerSite = random.nextInt( 4 );
+
+    // Sometimes use only a handful of distinct scores, so that there
+    // are lots of ties to be broken on docId.
+    int numScores   = random.nextBoolean( ) ? 1 + random.nextInt( 10 ) : 0;
+
+    String[] sites  = new String[numDocs];
+    float[]  scores = new float [numDocs];
+    for ( int i = 0 ; i < numDocs ; i++ )
+      {
+        String site = "site" + random.nextInt( numSites ) + ".org";
+
+        // Mix up the case, since sites are compared case-insensitively.
+        sites [i] = random.nextInt( 4 ) == 0 ? site.toUpperCase( ) : site;
+        scores[i] = numScores > 0 ? random.nextInt( numScores ) : random.nextFloat( );
+      }
+
+    List<int[]> readers = readers( random, numDocs );
+
+    final FieldCache siteCache = new ArrayFieldCache( sites );
+    final FieldCache ordinalCache = new ArrayOrdinalFieldCache( sites, readers, random );
+    final int        perSite   = hitsPerSite;
+
+    // Use the same collection order for every collector.
+    long order = random.nextLong( );
+
+    Hit[] expected = reference( sites, scores, maxHits, hitsPerSite );
+
+    Map<String,Hit[]> actuals = new LinkedHashMap<String,Hit[]>( );
+
+    // When the CollapsingCollector replaces a hit with one having the
+    // same score and a lower docId, it doesn't bother re-sorting; and
+    // it breaks ties with the lowest hit depending on the order in
+    // which docs are collected.  So it is only expected to match the
+    // reference when there are no ties.
+    if ( numScores == 0 )
+      {
+        CollapsingCollector original = new CollapsingCollector( siteCache, maxHits, hitsPerSite );
+        feed( original, new Random( order ), readers, scores );
+
+        Hit[] hits = original.getHits( );
+        Arrays.sort( hits, Collections.reverseOrder( CollapsingCollector.SCORE_COMPARATOR ) );
+
+        actuals.put( "CollapsingCollector", hits );
+      }
+
+    HeapCollapsingCollector heap = new HeapCollapsingCollector( siteCache, maxHits, hitsPerSite );
+    feed( heap, new Random( order ), readers, scores );
+    actuals.put( "HeapCollapsingCollector", heap.getHits( ) );
+
+    // Use the pooled collector, so that it is re-used from one run to
+    // the next, which checks that reset() clears out all the state.
+    OrdinalCollapsingCollector ordinal = OrdinalCollapsingCollector.acquire( (OrdinalFieldCache) ordinalCache, maxHits, hitsPerSite );
+    feed( ordinal, new Random( order ), readers, scores );
+    actuals.put( "OrdinalCollapsingCollector", ordinal.getHits( ) );
+
+    // With a single key, the MultiCollapsingCollector is exact.
+    MultiCollapsingCollector multi = new MultiCollapsingCollector( new FieldCache[] { siteCache }, new int[] { hitsPerSite }, maxHits );
+    feed( multi, new Random( order ), readers, scores );
+    actuals.put( "MultiCollapsingCollector", multi.getHits( ) );
+
+    // Paging through the results with a Cursor must give the same
+    // hits as collecting them all at once.
+    int pageSize = 1 + random.nextInt( 20 );
+
+    Hit[] expectedPages = reference( sites, scores, pageSize * 5, hitsPerSite );
+
+    Map<String,Hit[]> paged = new LinkedHashMap<String,Hit[]>( );
+    paged.put( "HeapCollapsingCollector paged", page( new CollectorFactory( )
+      {
+        public AbstractCollapsingCollector create( int maxHits )
+        {
+          return new HeapCollapsingCollector( siteCache, maxHits, perSite );
+        }
+      }, pageSize, 5, new Random( order ), readers, scores ) );
+    paged.put( "OrdinalCollapsingCollector paged", page( new CollectorFactory( )
+      {
+        public AbstractCollapsingCollector create( int maxHits )
+        {
+          return OrdinalCollapsingCollector.acquire( (OrdinalFieldCache) ordinalCache, maxHits, perSite );
+        }
+      }, pageSize, 5, new Random( order ), readers, scores ) );
+    paged.put( "MultiCollapsingCollector paged", page( new CollectorFactory( )
+      {
+        public AbstractCollapsingCollector create( int maxHits )
+        {
+          return new MultiCollapsingCollector( new FieldCache[] { siteCache }, new int[] { perSite }, maxHits );
+        }
+      }, pageSize, 5, new Random( order ), readers, scores ) );
+
+    String params = " (numDocs=" + numDocs + " numSites=" + numSites + " maxHits=" + maxHits + " pageSize=" + pageSize
+      + " hitsPerSite=" + hitsPerSite + " numScores=" + numScores + ")";
+
+    return verify( run, expected, actuals, params ) & verify( run, expectedPages, paged, params );
+  }
+
+  /**
+   * Check the MultiCollapsingCollector on two levels of keys: sites
+   * and, within them, digests.  When only one of the levels is
+   * actually limited, the results must match the reference exactly;
+   * otherwise they must at least respect all the limits.
+   */
+  public static boolean checkMulti( Random random, int run )
+    throws IOException
+  {
+    int numDocs     = random.nextInt( 5000 );
+    int numSites    = 1 + random.nextInt( 200 );
+    int numDigests  = 1 + random.nextInt( 10 );
+    int maxHits     = 1 + random.nextInt( 300 );
+    int numScores   = random.nextBoolean( ) ? 1 + random.nextInt( 10 ) : 0;
+
+    final int[] limits = { random.nextInt( 4 ), random.nextInt( 3 ) };
+
+    final String[] sites   = new String[numDocs];
+    final String[] digests = new String[numDocs];
+    float[]        scores  = new float [numDocs];
+    for ( int i = 0 ; i < numDocs ; i++ )
+      {
+        sites  [i] = "site" + random.nextInt( numSites ) + ".org";
+        digests[i] = "SHA1:" + random.nextInt( numDigests );
+        scores [i] = numScores > 0 ? random.nextInt( numScores ) : random.nextFloat( );
+      }
+
+    List<int[]> readers = readers( random, numDocs );
+
+    long order = random.nextLong( );
+
+    CollectorFactory factory = new CollectorFactory( )
+      {
+        public AbstractCollapsingCollector create( int maxHits )
+        {
+          return new MultiCollapsingCollector( new FieldCache[] { new ArrayFieldCache( sites ), new ArrayFieldCache( digests ) }, limits, maxHits );
+        }
+      };
+
+    AbstractCollapsingCollector multi = factory.create( maxHits );
+    feed( multi, new Random( order ), readers, scores );
+
+    int pageSize = 1 + random.nextInt( 20 );
+
+    Map<String,Hit[]> actuals = new LinkedHashMap<String,Hit[]>( );
+    actuals.put( "MultiCollapsingCollector (2 keys)",       multi.getHits( ) );
+    actuals.put( "MultiCollapsingCollector (2 keys) paged", page( factory, pageSize, 5, new Random( order ), readers, scores ) );
+
+    String params = " (numDocs=" + numDocs + " numSites=" + numSites + " numDigests=" + numDigests + " maxHits=" + maxHits
+      + " pageSize=" + pageSize + " limits=" + limits[0] + "," + limits[1] + " numScores=" + numScores + ")";
+
+    String[][] keys = { sites, digests };
+
+    boolean exact = limits[0] == 0 || limits[1] == 0 || limits[1] >= limits[0];
+
+    if ( exact )
+      {
+        Map<String,Hit[]> all  = Collections.singletonMap( "MultiCollapsingCollector (2 keys)",       actuals.get( "MultiCollapsingCollector (2 keys)" ) );
+        Map<String,Hit[]> page = Collections.singletonMap( "MultiCollapsingCollector (2 keys) paged", actuals.get( "MultiCollapsingCollector (2 keys) paged" ) );
+
+        return verify( run, reference( keys, scores, maxHits, limits ), all, params )
+          & verify( run, reference( keys, scores, pageSize * 5, limits ), page, params );
+      }
+
+    boolean ok = true;
+    for ( Map.Entry<String,Hit[]> entry : actuals.entrySet( ) )
+      {
+        String violation = checkLimits( entry.getValue( ), limits );
+
+        if ( violation != null )
+          {
+            ok = false;
+
+            System.out.println( "run " + run + ": " + entry.getKey( ) + ": " + violation + params );
+          }
+      }
+
+    return ok;
+  }
+
+  /**
+   * Check the HeapCollapsingCollector sorting on values, with lots of tied values,
+   * against a reference sorted the same way.
+   */
+  public static boolean checkSorted( Random random, int run )
+    throws IOException
+  {
+    int numDocs     = random.nextInt( 5000 );
+    int numSites    = 1 + random.nextInt( 200 );
+    int numValues   = 1 + random.nextInt( 100 );
+    int maxHits     = 1 + random.nextInt( 300 );
+    int hitsPerSite = random.nextInt( 4 );
+    int numScores   = random.nextBoolean( ) ? 1 + random.nextInt( 10 ) : 0;
+
+    boolean descending = random.nextBoolean( );
+    boolean scoreTies  = random.nextBoolean( );
+
+    String[] sites  = new String[numDocs];
+    long[]   values = new long  [numDocs];
+    float[]  scores = new float [numDocs];
+    for ( int i = 0 ; i < numDocs ; i++ )
+      {
+        sites [i] = "site" + random.nextInt( numSites ) + ".org";
+        values[i] = 20100101000000L + random.nextInt( numValues );
+        scores[i] = numScores > 0 ? random.nextInt( numScores ) : random.nextFloat( );
+      }
+
+    List<int[]> readers = readers( random, numDocs );
+
+    HeapCollapsingCollector sorted = new HeapCollapsingCollector( new ArrayFieldCache( sites ), new ArrayFieldCacheLong( values ),
+                                                                  descending, scoreTies, maxHits, hitsPerSite );
+    feed( sorted, new Random( random.nextLong( ) ), readers, scores );
+
+    Hit[] actual = sorted.getHits( );
+
+    // The collector doesn't compute scores it doesn't need.
+    if ( ! scoreTies ) scores = new float[numDocs];
+
+    Hit[] all = new Hit[numDocs];
+    for ( int i = 0 ; i < numDocs ; i++ )
+      {
+        all[i] = new Hit( i, scores[i], sites[i] );
+        all[i].value = values[i];
+      }
+
+    Hit[] expected = reference( all, maxHits, new int[] { hitsPerSite }, HeapCollapsingCollector.comparator( descending, scoreTies ) );
+
+    String params = " (numDocs=" + numDocs + " numSites=" + numSites + " numValues=" + numValues + " maxHits=" + maxHits
+      + " hitsPerSite=" + hitsPerSite + " numScores=" + numScores + " descending=" + descending + " scoreTies=" + scoreTies + ")";
+
+    return verify( run, expected, Collections.singletonMap( "HeapCollapsingCollector", actual ), params );
+  }
+
+  /**
+   * Returns a description of the first group over its limit, or
+   * <code>null</code> if there is none.
+   */
+  public static String checkLimits( Hit[] hits, int[] limits )
+  {
+    Map<String,Integer> counts = new HashMap<String,Integer>( );
+    for ( Hit hit : hits )
+      {
+        String[] groups = MultiCollapsingCollector.groupKeys( hit );
+
+        for ( int i = 0 ; i < groups.length ; i++ )
+          {
+            Integer count = counts.get( groups[i] );
+
+            count = count == null ? 1 : count + 1;
+
+            if ( limits[i] > 0 && count > limits[i] ) return "group " + groups[i].replace( '\u0000', '/' ) + " has more than " + limits[i] + " hits";
+
+            counts.put( groups[i], count );
+          }
+      }
+
+    return null;
+  }
+
+  /**
+   * Split the docs across a few readers, collecting each reader's
+   * docs in a random order, since the collectors accept docs out of
+   * order.
+   */
+  public static List<int[]> readers( Random random, int numDocs )
+  {
+    List<int[]> readers = new ArrayList<int[]>( );
+    for ( int docBase = 0 ; docBase < numDocs ; )
+      {
+        int length = Math.min( numDocs - docBase, 1 + random.nextInt( 1000 ) );
+
+        readers.add( new int[] { docBase, length } );
+
+        docBase += length;
+      }
+
+    return readers;
+  }
+
+  /**
+   * Compare each of the actual Hits against the expected ones,
+   * printing any difference.  Returns true if they all match.
+   */
+  public static boolean verify( int run, Hit[] expected, Map<String,Hit[]> actuals, String params )
+  {
+    boolean ok = true;
+    for ( Map.Entry<String,Hit[]> entry : actuals.entrySet( ) )
+      {
+        String mismatch = compare( expected, entry.getValue( ) );
+
+        if ( mismatch != null )
+          {
+            ok = false;
+
+            System.out.println( "run " + run + ": " + entry.getKey( ) + ": " + mismatch + params );
+          }
+      }
+
+    return ok;
+  }
+
+  /**
+   * The simplest possible implementation of collapsing: sort all the
+   * docs by descending score, then ascending docId, and take them in
+   * that order, skipping any whose site already has hitsPerSite.
+   */
+  public static Hit[] reference( String[] sites, float[] scores, int maxHits, int hitsPerSite )
+  {
+    return reference( new String[][] { sites }, scores, maxHits, new int[] { hitsPerSite } );
+  }
+
+  /**
+   * As above, but collapsing on several nested keys, skipping any
+   * doc whose group at any level is already at its limit.
+   */
+  public static Hit[] reference( String[][] keys, float[] scores, int maxHits, int[] limits )
+  {
+    Hit[] all = new Hit[scores.length];
+    for ( int i = 0 ; i < scores.length ; i++ )
+      {
+        all[i] = new Hit( i, scores[i], keys[0][i] );
+
+        if ( keys.length > 1 )
+          {
+            all[i].keys = new String[keys.length];
+            for ( int k = 0 ; k < keys.length ; k++ ) all[i].keys[k] = keys[k][i].toLowerCase( );
+          }
+      }
+
+    return reference( all, maxHits, limits, CollapsingCollector.SCORE_COMPARATOR );
+  }
+
+  /**
+   * As above, for the given Hits, ranked by the given Comparator,
+   * which puts the lowest-ranked Hits first.
+   */
+  public static Hit[] reference( Hit[] all, int maxHits, int[] limits, Comparator<Hit> comparator )
+  {
+    all = all.clone( );
+
+    Arrays.sort( all, Collections.reverseOrder( comparator ) );
+
+    List<Hit> hits = new ArrayList<Hit>( );
+    Map<String,Integer> counts = new HashMap<String,Integer>( );
+    for ( int i = 0 ; i < all.length && hits.size( ) < maxHits ; i++ )
+      {
+        String[] groups = MultiCollapsingCollector.groupKeys( all[i] );
+
+        boolean full = false;
+        for ( int k = 0 ; k < groups.length ; k++ )
+          {
+            Integer count = counts.get( groups[k] );
+
+            if ( limits[k] > 0 && count != null && count >= limits[k] ) full = true;
+          }
+
+        if ( full ) continue;
+
+        for ( String group : groups )
+          {
+            Integer count = counts.get( group );
+
+            counts.put( group, count == null ? 1 : count + 1 );
+          }
+
+        hits.add( all[i] );
+      }
+
+    return hits.toArray( new Hit[hits.size()] );
+  }
+
+  /**
+   * Collect up to numPages pages of hits, each one starting after the
+   * Cursor of the previous page, and return them all concatenated.
+   */
+  public static Hit[] page( CollectorFactory factory, int pageSize, int numPages, Random random, List<int[]> readers, float[] scores )
+    throws IOException
+  {
+    List<Hit> hits = new ArrayList<Hit>( );
+
+    long seed = random.nextLong( );
+
+    Cursor cursor = null;
+    for ( int p = 0 ; p < numPages ; p++ )
+      {
+        AbstractCollapsingCollector collector = factory.create( pageSize );
+
+        // Round-trip the cursor, as a client would.
+        if ( cursor != null ) collector.setCursor( Cursor.decode( cursor.encode( ) ) );
+
+        feed( collector, new Random( seed ), readers, scores );
+
+        Hit[] page = collector.getHits( );
+
+        hits.addAll( Arrays.asList( page ) );
+
+        if ( page.length < pageSize ) break;
+
+        cursor = Cursor.after( cursor, page, 0, page.length );
+      }
+
+    return hits.toArray( new Hit[hits.size()] );
+  }
+
+  /**
+   * Feed the docs of each reader, in a random order, through the
+   * given collector.
+   */
+  public static void feed( Collector collector, Random random, List<int[]> readers, float[] scores )
+    throws IOException
+  {
+    FixedScorer scorer = new FixedScorer( );
+
+    for ( int[] r : readers )
+      {
+        int docBase = r[0], length = r[1];
+
+        collector.setNextReader( null, docBase );
+        collector.setScorer( scorer );
+
+        int[] order = new int[length];
+        for ( int i = 0 ; i < length ; i++ ) order[i] = i;
+        for ( int i = length - 1 ; i > 0 ; i-- )
+          {
+            int j = random.nextInt( i + 1 );
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+          }
+
+        for ( int docId : order )
+          {
+            scorer.doc   = docId;
+            scorer.score = scores[docBase + docId];
+
+            collector.collect( docId );
+          }
+      }
+  }
+
+  /**
+   * Returns a description of the first difference between the
+   * expected and actual Hits, or <code>null</code> if they are the
+   * same.
+   */
+  public static String compare( Hit[] expected, Hit[] actual )
+  {
+    if ( expected.length != actual.length )
+      {
+        return "expected " + expected.length + " hits, got " + actual.length;
+      }
+
+    for ( int i = 0 ; i < expected.length ; i++ )
+      {
+        if ( expected[i].id != actual[i].id ||
+             expected[i].score != actual[i].score ||
+             ! expected[i].site.equalsIgnoreCase( actual[i].site ) )
+          {
+            return "hit[" + i + "] expected (" + expected[i].id + ", " + expected[i].score + ", " + expected[i].site + ")"
+              + " got (" + actual[i].id + ", " + actual[i].score + ", " + actual[i].site + ")";
+          }
+      }
+
+    return null;
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.tnh.tools;
+
+import java.io.*;
+
+import org.apache.lucene.index.IndexReader;
+
+import org.archive.tnh.FieldCacheMapped;
+import org.archive.tnh.IndexOpener;
+
+/**
+ * Writes the column file of a field, usually "site", into each of the
+ * given index directories, for the FieldCacheMapped.  An index
+ * directory can be anything IndexOpener.openIndexReader() can open:
+ * a plain index, a parallel index, or a directory of shards.
+ *
+ * The column file must be re-written whenever the index changes.  One
+ * which no longer matches its index is ignored, or re-written when the
+ * index is opened if the FieldCacheMapped is allowed to write them.
+ */
+public class ColumnWriter
+{
+  public static void main( String[] args )
+    throws Exception
+  {
+    if ( args.length < 2 )
+      {
+        System.err.println( "ColumnWriter <field> <index...>" );
+        System.exit( 1 );
+      }
+
+    String field = args[0];
+
+    for ( int i = 1 ; i < args.length ; i++ )
+      {
+        File directory = new File( args[i] );
+
+        long start = System.currentTimeMillis( );
+
+        IndexReader reader = IndexOpener.openIndexReader( directory, 1 );
+        try
+          {
+            FieldCacheMapped.write( reader, directory, field );
+          }
+        finally
+          {
+            reader.close( );
+          }
+
+        System.out.println( FieldCacheMapped.getColumnFile( directory, field ) + " " + ( System.currentTimeMillis( ) - start ) + "ms" );
+      }
+  }
+
+}